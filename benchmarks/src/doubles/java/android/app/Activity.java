@@ -0,0 +1,7 @@
+package android.app;
+
+import android.content.Context;
+
+public abstract class Activity extends Context {
+    public static final String ACTIVITY_SERVICE = "activity";
+}
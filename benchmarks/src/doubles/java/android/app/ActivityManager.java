@@ -0,0 +1,7 @@
+package android.app;
+
+public class ActivityManager {
+    public int getMemoryClass() {
+        return (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024));
+    }
+}
@@ -0,0 +1,44 @@
+package android.content;
+
+import java.io.File;
+
+import android.content.res.Resources;
+
+/**
+ * Resolves the cache directories to the directory given to the constructor.
+ */
+public abstract class Context {
+    private final File mCacheDir;
+
+    protected Context() {
+        this(new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    protected Context(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    public Object getSystemService(String name) {
+        return null;
+    }
+
+    public File getCacheDir() {
+        return mCacheDir;
+    }
+
+    public File getExternalCacheDir() {
+        return null;
+    }
+
+    public String getPackageName() {
+        return "com.uphyca.imageloadlib.benchmarks";
+    }
+
+    public Resources getResources() {
+        return new Resources();
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+}
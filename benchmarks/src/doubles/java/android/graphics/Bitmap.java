@@ -0,0 +1,111 @@
+package android.graphics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A bitmap without pixels. It knows its size and config, and compresses to
+ * one byte per pixel.
+ */
+public final class Bitmap {
+    public enum CompressFormat {
+        JPEG, PNG
+    }
+
+    public enum Config {
+        ALPHA_8(1), RGB_565(2), ARGB_4444(2), ARGB_8888(4);
+
+        final int bytesPerPixel;
+
+        Config(int bytesPerPixel) {
+            this.bytesPerPixel = bytesPerPixel;
+        }
+    }
+
+    private int mWidth;
+    private int mHeight;
+    private Config mConfig;
+    private final int mAllocationByteCount;
+    private final boolean mMutable;
+    private boolean mRecycled;
+
+    private Bitmap(int width, int height, Config config, boolean mutable) {
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+        mMutable = mutable;
+        mAllocationByteCount = getByteCount();
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        return new Bitmap(width, height, config, true);
+    }
+
+    public static Bitmap createScaledBitmap(Bitmap src, int width, int height, boolean filter) {
+        return new Bitmap(width, height, src.mConfig, true);
+    }
+
+    public boolean compress(CompressFormat format, int quality, OutputStream stream) {
+        try {
+            final byte[] row = new byte[mWidth];
+            for (int i = 0; i < mHeight; i++) {
+                stream.write(row);
+            }
+            return true;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getRowBytes() {
+        return mWidth * mConfig.bytesPerPixel;
+    }
+
+    public int getByteCount() {
+        return getRowBytes() * mHeight;
+    }
+
+    public int getAllocationByteCount() {
+        return mAllocationByteCount;
+    }
+
+    public void reconfigure(int width, int height, Config config) {
+        if (!mMutable || width * height * config.bytesPerPixel > mAllocationByteCount) {
+            throw new IllegalArgumentException("can not reconfigure to " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+    }
+
+    public Config getConfig() {
+        return mConfig;
+    }
+
+    public boolean isMutable() {
+        return mMutable;
+    }
+
+    public boolean isRecycled() {
+        return mRecycled;
+    }
+
+    public void recycle() {
+        mRecycled = true;
+    }
+
+    public boolean hasAlpha() {
+        return mConfig != Config.RGB_565;
+    }
+
+    public void eraseColor(int color) {
+    }
+}
@@ -0,0 +1,55 @@
+package android.graphics;
+
+import java.io.FileDescriptor;
+import java.io.InputStream;
+
+import android.content.res.Resources;
+
+/**
+ * Decodes nothing: every decode fails as if the bytes were not an image.
+ * Resources decode to a 1x1 placeholder, like the loading images of an app.
+ */
+public class BitmapFactory {
+    public static class Options {
+        public boolean inJustDecodeBounds;
+        public int inSampleSize;
+        public int outWidth;
+        public int outHeight;
+        public String outMimeType;
+        public Bitmap.Config inPreferredConfig;
+        public boolean inMutable;
+        public Bitmap inBitmap;
+        public boolean inDither;
+        public boolean inPurgeable;
+        public boolean inInputShareable;
+        public byte[] inTempStorage;
+    }
+
+    public static Bitmap decodeFile(String pathName) {
+        return null;
+    }
+
+    public static Bitmap decodeFile(String pathName, Options opts) {
+        return null;
+    }
+
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length, Options opts) {
+        return null;
+    }
+
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length) {
+        return null;
+    }
+
+    public static Bitmap decodeStream(InputStream is, Rect outPadding, Options opts) {
+        return null;
+    }
+
+    public static Bitmap decodeFileDescriptor(FileDescriptor fd, Rect outPadding, Options opts) {
+        return null;
+    }
+
+    public static Bitmap decodeResource(Resources res, int id) {
+        return Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+    }
+}
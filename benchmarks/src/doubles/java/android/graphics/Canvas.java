@@ -0,0 +1,12 @@
+package android.graphics;
+
+public class Canvas {
+    public Canvas(Bitmap bitmap) {
+    }
+
+    public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+    }
+
+    public void setBitmap(Bitmap bitmap) {
+    }
+}
@@ -0,0 +1,12 @@
+package android.graphics;
+
+public class Paint {
+    public static final int FILTER_BITMAP_FLAG = 2;
+    public static final int DITHER_FLAG = 4;
+
+    public Paint() {
+    }
+
+    public Paint(int flags) {
+    }
+}
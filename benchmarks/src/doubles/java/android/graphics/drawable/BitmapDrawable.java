@@ -0,0 +1,16 @@
+package android.graphics.drawable;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+
+public class BitmapDrawable extends Drawable {
+    private final Bitmap mBitmap;
+
+    public BitmapDrawable(Resources res, Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+}
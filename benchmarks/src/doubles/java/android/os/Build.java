@@ -0,0 +1,20 @@
+package android.os;
+
+public class Build {
+    public static class VERSION {
+        // Jelly Bean 相当。テストから書き換えてもよい
+        public static int SDK_INT = VERSION_CODES.JELLY_BEAN;
+    }
+
+    public static class VERSION_CODES {
+        public static final int DONUT = 4;
+        public static final int ECLAIR = 5;
+        public static final int FROYO = 8;
+        public static final int GINGERBREAD = 9;
+        public static final int HONEYCOMB = 11;
+        public static final int HONEYCOMB_MR1 = 12;
+        public static final int ICE_CREAM_SANDWICH = 14;
+        public static final int JELLY_BEAN = 16;
+        public static final int KITKAT = 19;
+    }
+}
@@ -0,0 +1,23 @@
+package android.os;
+
+import java.io.File;
+
+/**
+ * There is no external storage.
+ */
+public class Environment {
+    public static final String MEDIA_MOUNTED = "mounted";
+    public static final String MEDIA_REMOVED = "removed";
+
+    public static String getExternalStorageState() {
+        return MEDIA_REMOVED;
+    }
+
+    public static boolean isExternalStorageRemovable() {
+        return true;
+    }
+
+    public static File getExternalStorageDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
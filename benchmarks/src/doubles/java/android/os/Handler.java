@@ -0,0 +1,25 @@
+package android.os;
+
+/**
+ * Runs posted callbacks right away on the posting thread.
+ */
+public class Handler {
+    public Handler() {
+    }
+
+    public Handler(Looper looper) {
+    }
+
+    public final boolean post(Runnable r) {
+        r.run();
+        return true;
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        r.run();
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable r) {
+    }
+}
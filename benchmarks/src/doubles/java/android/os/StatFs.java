@@ -0,0 +1,19 @@
+package android.os;
+
+import java.io.File;
+
+public class StatFs {
+    private final File mPath;
+
+    public StatFs(String path) {
+        mPath = new File(path);
+    }
+
+    public int getBlockSize() {
+        return 4096;
+    }
+
+    public int getAvailableBlocks() {
+        return (int) Math.min(Integer.MAX_VALUE, mPath.getUsableSpace() / getBlockSize());
+    }
+}
@@ -0,0 +1,35 @@
+package android.util;
+
+/**
+ * Drops debug output and prints warnings and errors to stderr.
+ */
+public class Log {
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println("W", tag, msg + ": " + tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println("E", tag, msg + ": " + tr);
+    }
+
+    private static int println(String priority, String tag, String msg) {
+        System.err.println(priority + "/" + tag + ": " + msg);
+        return 0;
+    }
+}
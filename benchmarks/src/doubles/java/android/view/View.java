@@ -0,0 +1,21 @@
+package android.view;
+
+import android.os.IBinder;
+
+public class View {
+    public IBinder getWindowToken() {
+        return null;
+    }
+
+    public ViewParent getParent() {
+        return null;
+    }
+
+    public boolean isShown() {
+        return false;
+    }
+
+    public interface OnCreateContextMenuListener {
+        void onCreateContextMenu(ContextMenu menu, View v, ContextMenu.ContextMenuInfo menuInfo);
+    }
+}
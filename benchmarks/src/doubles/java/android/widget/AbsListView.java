@@ -0,0 +1,18 @@
+package android.widget;
+
+import android.view.View;
+
+public class AbsListView extends View {
+    public interface OnScrollListener {
+        int SCROLL_STATE_IDLE = 0;
+        int SCROLL_STATE_TOUCH_SCROLL = 1;
+        int SCROLL_STATE_FLING = 2;
+
+        void onScrollStateChanged(AbsListView view, int scrollState);
+
+        void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount);
+    }
+
+    public void setOnScrollListener(OnScrollListener l) {
+    }
+}
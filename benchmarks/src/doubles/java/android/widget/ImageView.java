@@ -0,0 +1,22 @@
+package android.widget;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.view.View;
+
+public class ImageView extends View {
+    private Drawable mDrawable;
+
+    public Drawable getDrawable() {
+        return mDrawable;
+    }
+
+    public void setImageBitmap(Bitmap bitmap) {
+        mDrawable = new BitmapDrawable(null, bitmap);
+    }
+
+    public void setImageDrawable(Drawable drawable) {
+        mDrawable = drawable;
+    }
+}
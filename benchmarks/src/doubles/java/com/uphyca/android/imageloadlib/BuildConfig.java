@@ -0,0 +1,5 @@
+package com.uphyca.android.imageloadlib;
+
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
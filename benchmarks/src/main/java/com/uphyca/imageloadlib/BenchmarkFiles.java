@@ -0,0 +1,52 @@
+package com.uphyca.imageloadlib;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+
+/**
+ * Temporary directories and a {@link Context} for benchmarks.
+ */
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        final File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        return dir;
+    }
+
+    static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                deleteRecursively(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * @return a context whose cache directory is the given directory
+     */
+    static Context createContext(File cacheDir) {
+        return new Context(cacheDir) {
+        };
+    }
+
+    /**
+     * @return distinct image URLs
+     */
+    static String[] createUrls(int count) {
+        final String[] urls = new String[count];
+        for (int i = 0; i < count; i++) {
+            urls[i] = "http://images.example.com/photos/" + (i * 7919) + "/thumbnail_" + i + ".jpg?size=medium";
+        }
+        return urls;
+    }
+}
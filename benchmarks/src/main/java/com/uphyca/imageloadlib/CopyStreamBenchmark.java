@@ -0,0 +1,96 @@
+package com.uphyca.imageloadlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The download copy loop from a local file into a cache file:
+ * {@link ImageFetcher#copyStream(InputStream, OutputStream)} against the byte
+ * at a time loop through 1KB buffered streams it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyStreamBenchmark {
+
+    private static final int LEGACY_BUFFER_SIZE = 1024;
+
+    @Param({ "65536", "1048576" })
+    public int size;
+
+    private File mDir;
+    private File mSource;
+    private File mTarget;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = BenchmarkFiles.createTempDir("copystream");
+        mSource = new File(mDir, "source");
+        mTarget = new File(mDir, "target");
+        final OutputStream out = new FileOutputStream(mSource);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteRecursively(mDir);
+    }
+
+    @Benchmark
+    public long copyStream() throws IOException {
+        final InputStream in = new FileInputStream(mSource);
+        final OutputStream out = new FileOutputStream(mTarget);
+        try {
+            return ImageFetcher.copyStream(in, out);
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public long legacyByteLoop() throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(mSource), LEGACY_BUFFER_SIZE);
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(mTarget), LEGACY_BUFFER_SIZE);
+        try {
+            long count = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+                count++;
+            }
+            return count;
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+}
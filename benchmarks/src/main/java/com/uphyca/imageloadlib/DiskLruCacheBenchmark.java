@@ -0,0 +1,126 @@
+package com.uphyca.imageloadlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Puts and gets of {@link DiskLruCache}, alone and with readers and a writer
+ * contending for the index lock. Puts of new keys keep the cache over its
+ * limits, so they include scheduling the background trim and its deletes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskLruCacheBenchmark {
+
+    @Param({ "1000" })
+    public int entryCount;
+
+    @Param({ "4096" })
+    public int entrySize;
+
+    @Param({ "false", "true" })
+    public boolean slabStoreEnabled;
+
+    private File mDir;
+    private DiskLruCache mCache;
+    private String[] mKeys;
+    private byte[] mPayload;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        long newKeys;
+
+        @Setup
+        public void setUp() {
+            next = (int) (Thread.currentThread().getId() * 7919);
+        }
+
+        int next(int bound) {
+            next = (next + 1) % bound;
+            return next;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = BenchmarkFiles.createTempDir("disklrucache");
+        mCache = DiskLruCache.openCache(null, mDir, (long) entryCount * entrySize, entryCount);
+        mCache.setSlabStoreEnabled(slabStoreEnabled);
+        mPayload = new byte[entrySize];
+        final String[] urls = BenchmarkFiles.createUrls(entryCount);
+        mKeys = new String[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            mKeys[i] = ImageCache.hashKeyForDisk(urls[i]);
+            // 上限より少し少なく入れておく
+            if (i < entryCount * 8 / 10) {
+                put(mKeys[i]);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteRecursively(mDir);
+    }
+
+    private void put(String key) throws IOException {
+        final DiskLruCache.Editor editor = mCache.edit(key);
+        try {
+            editor.newOutputStream().write(mPayload);
+            editor.commit();
+        } finally {
+            editor.abortUnlessCommitted();
+        }
+    }
+
+    @Benchmark
+    public Object get(Cursor cursor) {
+        return mCache.getSource(mKeys[cursor.next(mKeys.length)]);
+    }
+
+    @Benchmark
+    public void putExisting(Cursor cursor) throws IOException {
+        put(mKeys[cursor.next(mKeys.length)]);
+    }
+
+    @Benchmark
+    public void putNewAndEvict(Cursor cursor) throws IOException {
+        put(ImageCache.hashKeyForDisk("new:" + Thread.currentThread().getId() + ":" + cursor.newKeys++));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public Object contendedGet(Cursor cursor) {
+        return mCache.getSource(mKeys[cursor.next(mKeys.length)]);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void contendedPut(Cursor cursor) throws IOException {
+        put(mKeys[cursor.next(mKeys.length)]);
+    }
+}
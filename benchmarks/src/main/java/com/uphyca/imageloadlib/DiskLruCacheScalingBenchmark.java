@@ -0,0 +1,90 @@
+package com.uphyca.imageloadlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Puts and gets of {@link DiskLruCache} holding more and more entries. With
+ * the index in memory and the files sharded into subdirectories, the times
+ * should stay about the same from a thousand to a hundred thousand entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskLruCacheScalingBenchmark {
+
+    private static final int ENTRY_SIZE = 256;
+
+    @Param({ "1000", "10000", "100000" })
+    public int entryCount;
+
+    private File mDir;
+    private DiskLruCache mCache;
+    private String[] mKeys;
+    private final byte[] mPayload = new byte[ENTRY_SIZE];
+    private int mNext;
+    private long mNewKeys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = BenchmarkFiles.createTempDir("disklrucache-scaling");
+        mCache = DiskLruCache.openCache(null, mDir, (long) entryCount * ENTRY_SIZE, entryCount);
+        final String[] urls = BenchmarkFiles.createUrls(entryCount);
+        mKeys = new String[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            mKeys[i] = ImageCache.hashKeyForDisk(urls[i]);
+            put(mKeys[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteRecursively(mDir);
+    }
+
+    private void put(String key) throws IOException {
+        final DiskLruCache.Editor editor = mCache.edit(key);
+        try {
+            editor.newOutputStream().write(mPayload);
+            editor.commit();
+        } finally {
+            editor.abortUnlessCommitted();
+        }
+    }
+
+    @Benchmark
+    public Object get() {
+        mNext = (mNext + 7919) % mKeys.length;
+        return mCache.getSource(mKeys[mNext]);
+    }
+
+    @Benchmark
+    public void putExisting() throws IOException {
+        mNext = (mNext + 7919) % mKeys.length;
+        put(mKeys[mNext]);
+    }
+
+    @Benchmark
+    public void putNewAndEvict() throws IOException {
+        // 満杯なので毎回裏で追い出しが走る
+        put(ImageCache.hashKeyForDisk("new:" + mNewKeys++));
+    }
+}
@@ -0,0 +1,111 @@
+package com.uphyca.imageloadlib;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ImageCache#hashKeyForDisk(String)}, which every disk lookup and
+ * insert goes through, against the implementation it replaced, and the key of
+ * an {@link ImageRequest} that is computed once and reused. Run with -prof gc
+ * to see the allocation per key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashKeyBenchmark {
+
+    private static final int URL_COUNT = 1024;
+
+    private String[] mUrls;
+    private ImageRequest[] mRequests;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mUrls = BenchmarkFiles.createUrls(URL_COUNT);
+        mRequests = new ImageRequest[URL_COUNT];
+        for (int i = 0; i < URL_COUNT; i++) {
+            mRequests[i] = new ImageRequest(mUrls[i], 100, 100);
+        }
+    }
+
+    @Benchmark
+    public String hashKeyForDisk() {
+        mNext = (mNext + 1) & (URL_COUNT - 1);
+        return ImageCache.hashKeyForDisk(mUrls[mNext]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String hashKeyForDiskConcurrent() {
+        mNext = (mNext + 1) & (URL_COUNT - 1);
+        return ImageCache.hashKeyForDisk(mUrls[mNext]);
+    }
+
+    @Benchmark
+    public String legacyHashKeyForDisk() {
+        mNext = (mNext + 1) & (URL_COUNT - 1);
+        return legacyHashKeyForDisk(mUrls[mNext]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String legacyHashKeyForDiskConcurrent() {
+        mNext = (mNext + 1) & (URL_COUNT - 1);
+        return legacyHashKeyForDisk(mUrls[mNext]);
+    }
+
+    /**
+     * The disk key as the memory cache, the disk cache and the download path
+     * see it after the first lookup of a request.
+     */
+    @Benchmark
+    public String requestDiskKey() {
+        mNext = (mNext + 1) & (URL_COUNT - 1);
+        return mRequests[mNext].getDiskKey();
+    }
+
+    /**
+     * The implementation before the digest was kept per thread: a new
+     * MessageDigest per call and a hex string built through StringBuilder.
+     */
+    static String legacyHashKeyForDisk(String key) {
+        String cacheKey;
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(key.getBytes());
+            cacheKey = legacyBytesToHexString(digest.digest());
+        } catch (final NoSuchAlgorithmException e) {
+            cacheKey = String.valueOf(key.hashCode());
+        }
+        return cacheKey;
+    }
+
+    private static String legacyBytesToHexString(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < bytes.length; i++) {
+            final String hex = Integer.toHexString(0xFF & bytes[i]);
+            if (hex.length() == 1) {
+                sb.append('0');
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+}
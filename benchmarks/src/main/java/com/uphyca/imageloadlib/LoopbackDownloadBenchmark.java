@@ -0,0 +1,94 @@
+package com.uphyca.imageloadlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Downloads from a {@link LoopbackServer} into a file: the download path of
+ * {@link ImageFetcher}, which copies in bulk and keeps the connection alive,
+ * against the old byte at a time loop that disconnected after every image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackDownloadBenchmark {
+
+    private static final int LEGACY_BUFFER_SIZE = 1024;
+
+    @Param({ "16384", "262144", "1048576" })
+    public int size;
+
+    private File mDir;
+    private File mTarget;
+    private LoopbackServer mServer;
+    private String mUrl;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = BenchmarkFiles.createTempDir("download");
+        mTarget = new File(mDir, "target");
+        mServer = new LoopbackServer(size);
+        mUrl = mServer.url("/image.jpg");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mServer.shutdown();
+        BenchmarkFiles.deleteRecursively(mDir);
+    }
+
+    @Benchmark
+    public int download() throws IOException {
+        final OutputStream out = new FileOutputStream(mTarget);
+        try {
+            return ImageFetcher.downloadUrlToStream(mUrl, null, out).status;
+        } finally {
+            out.close();
+        }
+    }
+
+    @Benchmark
+    public long legacyDownload() throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        final InputStream in = new BufferedInputStream(connection.getInputStream(), LEGACY_BUFFER_SIZE);
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(mTarget), LEGACY_BUFFER_SIZE);
+        try {
+            long count = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+                count++;
+            }
+            return count;
+        } finally {
+            connection.disconnect();
+            out.close();
+            in.close();
+        }
+    }
+}
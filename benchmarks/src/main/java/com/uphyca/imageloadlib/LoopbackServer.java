@@ -0,0 +1,179 @@
+package com.uphyca.imageloadlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server standing in for an image host. Every path is an image
+ * of the configured size with an ETag derived from the path; a request whose
+ * If-None-Match matches gets a 304. The server records how many requests and
+ * connections it saw and how many requests were waiting for their response
+ * at once.
+ */
+final class LoopbackServer {
+
+    static {
+        // ヘッダとボディを別々に書くので、Nagle と遅延 ACK で使い回した接続が 40ms 待たされる
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+    private volatile byte[] mBody;
+    private volatile String mCacheControl;
+    private volatile long mDelayMillis;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private final AtomicInteger mMaxRunning = new AtomicInteger();
+    // クライアント側のポートが違えば別の接続
+    private final HashSet<Integer> mClientPorts = new HashSet<Integer>();
+
+    /**
+     * Starts a server on an ephemeral port of the loopback interface.
+     *
+     * @param bodySize
+     *            the size of every image
+     */
+    LoopbackServer(int bodySize) throws IOException {
+        mBody = new byte[bodySize];
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.start();
+    }
+
+    void setBodySize(int bodySize) {
+        mBody = new byte[bodySize];
+    }
+
+    /**
+     * @param cacheControl
+     *            the Cache-Control header of responses, or null for none
+     */
+    void setCacheControl(String cacheControl) {
+        mCacheControl = cacheControl;
+    }
+
+    /**
+     * Makes every response wait before it is sent, so that requests overlap.
+     */
+    void setDelayMillis(long delayMillis) {
+        mDelayMillis = delayMillis;
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    static String etagOf(String path) {
+        return "\"" + Integer.toHexString(path.hashCode()) + "\"";
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    int getMaxConcurrentRequests() {
+        return mMaxRunning.get();
+    }
+
+    int getConnectionCount() {
+        synchronized (mClientPorts) {
+            return mClientPorts.size();
+        }
+    }
+
+    void resetCounts() {
+        mRequestCount.set(0);
+        mNotModifiedCount.set(0);
+        mMaxRunning.set(0);
+        synchronized (mClientPorts) {
+            mClientPorts.clear();
+        }
+    }
+
+    void shutdown() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        mRequestCount.incrementAndGet();
+        synchronized (mClientPorts) {
+            mClientPorts.add(exchange.getRemoteAddress().getPort());
+        }
+        final int running = mRunning.incrementAndGet();
+        int max;
+        while (running > (max = mMaxRunning.get()) && !mMaxRunning.compareAndSet(max, running)) {
+            // 最大値を更新できるまで繰り返す
+        }
+        try {
+            drain(exchange.getRequestBody());
+            if (mDelayMillis > 0) {
+                try {
+                    Thread.sleep(mDelayMillis);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } finally {
+            // クライアントはボディを受け取ると次のリクエストを始めるので、応答を書く前に数え終える
+            mRunning.decrementAndGet();
+        }
+
+        try {
+            final String path = exchange.getRequestURI().getPath();
+            final String etag = etagOf(path);
+            final Headers headers = exchange.getResponseHeaders();
+            headers.set("ETag", etag);
+            if (mCacheControl != null) {
+                headers.set("Cache-Control", mCacheControl);
+            }
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                mNotModifiedCount.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            final byte[] body = mBody;
+            headers.set("Content-Type", "image/jpeg");
+            exchange.sendResponseHeaders(200, body.length);
+            final OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        final byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1) {
+            // 読み捨てる
+        }
+        in.close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.uphyca.imageloadlib;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.graphics.Bitmap;
+
+/**
+ * Gets and puts of the memory cache of {@link ImageCache}, whose LruCache
+ * measures every entry with {@link ImageCache#getBitmapSize(Bitmap)}. Puts of
+ * new keys evict, which also feeds the bitmap pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryCacheBenchmark {
+
+    private static final int BITMAP_SIZE = 128;
+
+    @Param({ "256" })
+    public int entryCount;
+
+    private ImageCache mCache;
+    private ImageRequest[] mRequests;
+    private Bitmap[] mBitmaps;
+    private int mNext;
+    private int mNextNew;
+
+    @Setup
+    public void setUp() {
+        final ImageCacheParams params = new ImageCacheParams.ImageCacheParamsPostEclair("memory");
+        params.diskCacheEnabled = false;
+        params.memCacheSize = entryCount * BITMAP_SIZE * BITMAP_SIZE * 4;
+        params.bitmapPoolSize = params.memCacheSize / 4;
+        mCache = new ImageCache(null, params) {
+        };
+
+        final String[] urls = BenchmarkFiles.createUrls(entryCount * 2);
+        mRequests = new ImageRequest[urls.length];
+        mBitmaps = new Bitmap[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            mRequests[i] = new ImageRequest(urls[i], BITMAP_SIZE, BITMAP_SIZE);
+            mBitmaps[i] = Bitmap.createBitmap(BITMAP_SIZE, BITMAP_SIZE, Bitmap.Config.ARGB_8888);
+        }
+        for (int i = 0; i < entryCount; i++) {
+            mCache.addBitmapToMemCache(mRequests[i], mBitmaps[i]);
+        }
+    }
+
+    @Benchmark
+    public Bitmap getHit() {
+        mNext = (mNext + 1) % entryCount;
+        return mCache.getBitmapFromMemCache(mRequests[mNext].memCacheKey);
+    }
+
+    @Benchmark
+    public Bitmap getMiss() {
+        mNext = (mNext + 1) % entryCount;
+        return mCache.getBitmapFromMemCache(mRequests[entryCount + mNext].memCacheKey);
+    }
+
+    @Benchmark
+    public void putAndEvict() {
+        // キャッシュの倍の数を順に入れるので、毎回一番古いものが追い出される
+        mNextNew = (mNextNew + 1) % mRequests.length;
+        mCache.removeFromMemCache(mRequests[mNextNew].url);
+        mCache.addBitmapToMemCache(mRequests[mNextNew], mBitmaps[mNextNew]);
+    }
+}
@@ -0,0 +1,42 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+public class BitmapSizeTest {
+
+    private final int mSdkInt = Build.VERSION.SDK_INT;
+
+    @After
+    public void tearDown() {
+        Build.VERSION.SDK_INT = mSdkInt;
+    }
+
+    @Test
+    public void reusedBitmapIsChargedForItsAllocationOnKitKat() {
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.KITKAT;
+        final Bitmap bitmap = reused();
+        assertEquals(1000 * 1000 * 4, ImageCache.getBitmapSize(bitmap));
+    }
+
+    @Test
+    public void bitmapIsChargedForItsPixelsBeforeKitKat() {
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.JELLY_BEAN;
+        final Bitmap bitmap = reused();
+        assertEquals(100 * 100 * 4, ImageCache.getBitmapSize(bitmap));
+    }
+
+    /**
+     * A full screen bitmap a decode reused for a thumbnail.
+     */
+    private static Bitmap reused() {
+        final Bitmap bitmap = Bitmap.createBitmap(1000, 1000, Bitmap.Config.ARGB_8888);
+        bitmap.reconfigure(100, 100, Bitmap.Config.ARGB_8888);
+        return bitmap;
+    }
+}
@@ -0,0 +1,111 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+
+public class CancelledLoadTest {
+
+    private static final int BODY_SIZE = 1000;
+    // デコードのスレッド数より多く
+    private static final int BUSY_LOADS = 9;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private LoopbackServer mServer;
+    private ImageFetcher mFetcher;
+    private ImageCache mImageCache;
+    // デコードを止めておくためのもの
+    private final CountDownLatch mDecodeGate = new CountDownLatch(1);
+    private final AtomicInteger mBlockedDecodes = new AtomicInteger();
+    // ロードは ImageView を弱く持つので、待っている間回収されないようにする
+    private final ImageView[] mBusyViews = new ImageView[BUSY_LOADS];
+    private final ImageView mImageView = new ImageView();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LoopbackServer(BODY_SIZE);
+        final ImageCacheParams params = new ImageCacheParams.ImageCacheParamsPostEclair("cancel");
+        params.encodedMemCacheSize = 0;
+        final Context context = BenchmarkFiles.createContext(mTemp.newFolder("cache"));
+        mFetcher = new ImageFetcher(context) {
+        };
+        mImageCache = new ImageCache(context, params) {
+            @Override
+            public int getDecodeConfig() {
+                mBlockedDecodes.incrementAndGet();
+                try {
+                    mDecodeGate.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getDecodeConfig();
+            }
+        };
+        mFetcher.setImageCache(mImageCache);
+    }
+
+    @After
+    public void tearDown() {
+        mDecodeGate.countDown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void cancelledDecodeReleasesRetainedVariant() throws Exception {
+        fillDecodeThreads();
+
+        // 大きい方を縮小するロードがデコードの待ち行列に入る
+        final String url = mServer.url("/variant.jpg");
+        final Bitmap variant = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+        mImageCache.addBitmapToMemCache(new ImageRequest(url, 200, 200), variant);
+        mFetcher.loadImage(url, mImageView, 0, 100, 100);
+        Thread.sleep(50);
+
+        // 表示を待っている間はプールに入らない
+        mImageCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        // ImageView が使い回されてロードがキャンセルされる
+        mFetcher.loadImage(mServer.url("/other.jpg"), mImageView, 0, 100, 100);
+        assertSame(variant, mImageCache.getBitmapPool().getAtLeast(200 * 200 * 4));
+    }
+
+    /**
+     * Starts loads until every decode thread is blocked in the gate.
+     */
+    private void fillDecodeThreads() throws InterruptedException {
+        for (int i = 0; i < BUSY_LOADS; i++) {
+            mBusyViews[i] = new ImageView();
+            mFetcher.loadImage(mServer.url("/busy" + i + ".jpg"), mBusyViews[i], 0, 100, 100);
+        }
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mServer.getRequestCount() < BUSY_LOADS) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        // 増えなくなったらスレッドが埋まっている
+        int blocked = -1;
+        while (blocked != mBlockedDecodes.get() || blocked == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            blocked = mBlockedDecodes.get();
+            Thread.sleep(100);
+        }
+        assertTrue(blocked < BUSY_LOADS);
+    }
+}
@@ -0,0 +1,48 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class CopyStreamTest {
+
+    @Test
+    public void copiesEveryByte() throws IOException {
+        final int[] sizes = { 0, 1, 16 * 1024 - 1, 16 * 1024, 16 * 1024 + 1, 1024 * 1024 + 7 };
+        for (int i = 0; i < sizes.length; i++) {
+            final byte[] data = bytes(sizes[i]);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(sizes[i], ImageFetcher.copyStream(new ByteArrayInputStream(data), out));
+            assertArrayEquals(data, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void copiesShortReads() throws IOException {
+        final byte[] data = bytes(100 * 1024);
+        // ソケットのように少しずつしか返さないストリーム
+        final InputStream in = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(data.length, ImageFetcher.copyStream(in, out));
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    static byte[] bytes(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+}
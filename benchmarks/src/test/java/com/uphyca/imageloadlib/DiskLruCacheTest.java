@@ -0,0 +1,422 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskLruCacheTest {
+
+    private static final long MAX_BYTES = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mDir;
+    private final ArrayList<DiskLruCache> mOpened = new ArrayList<DiskLruCache>();
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mTemp.newFolder("cache");
+    }
+
+    @After
+    public void tearDown() {
+        // 次のテストが同じインスタンスを受け取らないように手放す
+        for (int i = 0; i < mOpened.size(); i++) {
+            mOpened.get(i).close();
+        }
+    }
+
+    @Test
+    public void replayRestoresEntriesAndSizes() throws IOException {
+        final DiskLruCache cache = open(10);
+        write(cache, "aa01", 100);
+        write(cache, "bb02", 200);
+        write(cache, "cc03", 300);
+        cache.close();
+
+        final DiskLruCache reopened = open(10);
+        assertTrue(reopened.containsKey("aa01"));
+        assertTrue(reopened.containsKey("bb02"));
+        assertTrue(reopened.containsKey("cc03"));
+        assertEquals(200, reopened.getFile("bb02").length());
+    }
+
+    @Test
+    public void replayRestoresLruOrder() throws IOException {
+        final DiskLruCache cache = open(10);
+        write(cache, "aa01", 100);
+        write(cache, "bb02", 100);
+        write(cache, "cc03", 100);
+        // 書き直したエントリが一番新しくなる
+        write(cache, "aa01", 100);
+        cache.close();
+
+        // 上限を下げて開き直すと、ジャーナルの順に古いものから消える
+        final DiskLruCache reopened = open(2);
+        assertFalse(reopened.containsKey("bb02"));
+        assertTrue(reopened.containsKey("cc03"));
+        assertTrue(reopened.containsKey("aa01"));
+        assertFalse(new File(DiskLruCache.createFilePath(mDir, "bb02")).exists());
+    }
+
+    @Test
+    public void replayHonorsRemove() throws IOException {
+        final DiskLruCache cache = open(10);
+        write(cache, "aa01", 100);
+        write(cache, "bb02", 100);
+        cache.removeEntry("aa01");
+        cache.close();
+
+        final DiskLruCache reopened = open(10);
+        assertFalse(reopened.containsKey("aa01"));
+        assertTrue(reopened.containsKey("bb02"));
+    }
+
+    @Test
+    public void replayIgnoresTruncatedLastLine() throws IOException {
+        final DiskLruCache cache = open(10);
+        write(cache, "aa01", 100);
+        cache.close();
+        appendToJournal("PUT bb0");
+
+        final DiskLruCache reopened = open(10);
+        assertTrue(reopened.containsKey("aa01"));
+        assertFalse(reopened.containsKey("bb0"));
+    }
+
+    @Test
+    public void replayRestoresValidators() throws IOException {
+        final DiskLruCache cache = open(10);
+        final DiskLruCache.Editor editor = cache.edit("aa01");
+        editor.newOutputStream().write(new byte[10]);
+        editor.setValidators(new DiskLruCache.Validators("\"v 1\"", 1000L, 2000L));
+        editor.commit();
+        cache.close();
+
+        final DiskLruCache.Validators validators = open(10).getValidators("aa01");
+        assertNotNull(validators);
+        assertEquals("\"v 1\"", validators.etag);
+        assertEquals(1000L, validators.lastModified);
+        assertEquals(2000L, validators.expires);
+    }
+
+    @Test
+    public void corruptJournalFallsBackToCacheFiles() throws IOException {
+        final DiskLruCache cache = open(10);
+        write(cache, "aa01", 100);
+        cache.close();
+        final OutputStream out = new FileOutputStream(new File(mDir, "journal"));
+        out.write("garbage\n".getBytes("US-ASCII"));
+        out.close();
+
+        final DiskLruCache reopened = open(10);
+        assertTrue(reopened.containsKey("aa01"));
+        assertEquals(100, reopened.getFile("aa01").length());
+    }
+
+    @Test
+    public void putTrimsToItemLimit() throws Exception {
+        final DiskLruCache cache = open(10);
+        for (int i = 0; i < 15; i++) {
+            write(cache, key(i), 10);
+        }
+        assertNewestKept(cache, 15, awaitEntries(cache, 15, 10));
+    }
+
+    @Test
+    public void putTrimsToByteLimit() throws Exception {
+        final DiskLruCache cache = open(1000, 100);
+        for (int i = 0; i < 15; i++) {
+            write(cache, key(i), 100);
+        }
+        assertNewestKept(cache, 15, awaitEntries(cache, 15, 10));
+    }
+
+    @Test
+    public void filesAreShardedByKeyPrefix() throws IOException {
+        final DiskLruCache cache = open(10);
+        write(cache, "ab01", 10);
+        write(cache, "cd02", 10);
+        assertEquals(new File(new File(mDir, "ab"), "cache_ab01").getPath(),
+                DiskLruCache.createFilePath(mDir, "ab01"));
+        assertTrue(new File(new File(mDir, "ab"), "cache_ab01").isFile());
+        assertTrue(new File(new File(mDir, "cd"), "cache_cd02").isFile());
+        assertFalse(new File(mDir, "cache_ab01").exists());
+    }
+
+    @Test
+    public void flatFilesOfOlderVersionsMoveIntoShards() throws IOException {
+        final OutputStream out = new FileOutputStream(new File(mDir, "cache_ef03"));
+        out.write(new byte[30]);
+        out.close();
+
+        final DiskLruCache cache = open(10);
+        assertTrue(cache.containsKey("ef03"));
+        assertFalse(new File(mDir, "cache_ef03").exists());
+        assertEquals(30, new File(DiskLruCache.createFilePath(mDir, "ef03")).length());
+    }
+
+    @Test
+    public void openersOfOneDirectoryShareTheInstance() throws IOException {
+        final DiskLruCache cache = open(10);
+        write(cache, "aa01", 100);
+        // 別の書き方のパスでも同じディレクトリ
+        final DiskLruCache other = DiskLruCache.openCache(null, new File(new File(mDir, ".."), mDir.getName()),
+                MAX_BYTES, 20);
+        assertSame(cache, other);
+        assertTrue(other.containsKey("aa01"));
+
+        // 片方の掃除がもう片方の書いたファイルを消さない
+        other.scheduleMaintenance();
+        write(cache, "bb02", 100);
+        cache.close();
+        final DiskLruCache reopened = open(10);
+        assertNotSame(cache, reopened);
+        assertTrue(reopened.containsKey("aa01"));
+        assertTrue(reopened.containsKey("bb02"));
+        assertTrue(new File(DiskLruCache.createFilePath(mDir, "bb02")).exists());
+    }
+
+    @Test
+    public void laterOpensKeepSettingsOfFirstOpen() throws IOException {
+        final DiskLruCache cache = DiskLruCache.openCache(null, mDir, MAX_BYTES, 10,
+                DiskLruCache.EVICTION_TINY_LFU, true);
+        mOpened.add(cache);
+        write(cache, "aa01", 1000);
+
+        // 別の画面が既定の設定で開いても、スラブも方式もそのまま
+        final DiskLruCache other = open(10);
+        assertSame(cache, other);
+        assertEquals(DiskLruCache.EVICTION_TINY_LFU, other.getEvictionPolicy());
+        assertTrue(other.isSlabStoreEnabled());
+        assertArrayEquals(new byte[1000], other.getSource("aa01").bytes);
+    }
+
+    @Test
+    public void closeFlushesReadsToJournal() throws IOException {
+        final DiskLruCache cache = open(2);
+        write(cache, "aa01", 100);
+        write(cache, "bb02", 100);
+        assertNotNull(cache.getSource("aa01"));
+        cache.close();
+
+        // 読んだ aa01 が新しい方として残る
+        final DiskLruCache reopened = open(1);
+        assertTrue(reopened.containsKey("aa01"));
+        assertFalse(reopened.containsKey("bb02"));
+    }
+
+    @Test
+    public void touchKeepsEntryRecent() throws IOException {
+        final DiskLruCache cache = open(2);
+        write(cache, "aa01", 100);
+        write(cache, "bb02", 100);
+        cache.touch("aa01");
+        cache.touch("cc03");
+        assertFalse(cache.containsKey("cc03"));
+        cache.close();
+
+        // 触った aa01 が新しい方として残る
+        final DiskLruCache reopened = open(1);
+        assertTrue(reopened.containsKey("aa01"));
+        assertFalse(reopened.containsKey("bb02"));
+    }
+
+    @Test
+    public void smallEntryIsWrittenStraightToSlab() throws IOException {
+        final DiskLruCache cache = open(10);
+        cache.setSlabStoreEnabled(true);
+        final DiskLruCache.Editor editor = cache.edit("aa01");
+        editor.newOutputStream().write(CopyStreamTest.bytes(1000));
+        // 一時ファイルを経由しない
+        assertEquals(0, tempFileCount());
+        final DiskLruCache.Source source = editor.commitSource();
+        assertNull(source.file);
+        assertArrayEquals(CopyStreamTest.bytes(1000), source.bytes);
+        assertArrayEquals(CopyStreamTest.bytes(1000), cache.getSource("aa01").bytes);
+        assertFalse(new File(DiskLruCache.createFilePath(mDir, "aa01")).exists());
+    }
+
+    @Test
+    public void rewrittenSlabEntryStaysReplacedAfterReopen() throws IOException {
+        final DiskLruCache cache = open(10);
+        cache.setSlabStoreEnabled(true);
+        write(cache, "aa01", 1000);
+        // スラブに入らない大きさで書き直す
+        write(cache, "aa01", 64 * 1024);
+        cache.close();
+
+        final DiskLruCache reopened = open(10);
+        reopened.setSlabStoreEnabled(true);
+        final DiskLruCache.Source source = reopened.getSource("aa01");
+        assertNull(source.bytes);
+        assertEquals(64 * 1024, source.file.length());
+    }
+
+    @Test
+    public void removedSlabEntryStaysRemovedAfterReopen() throws IOException {
+        final DiskLruCache cache = open(10);
+        cache.setSlabStoreEnabled(true);
+        write(cache, "aa01", 1000);
+        cache.removeEntry("aa01");
+        write(cache, "aa01", 64 * 1024);
+        cache.close();
+
+        final SlabStore store = SlabStore.open(mDir);
+        assertFalse(store.contains("aa01"));
+    }
+
+    @Test
+    public void largeEntrySpillsToFile() throws IOException {
+        final DiskLruCache cache = open(10);
+        cache.setSlabStoreEnabled(true);
+        final byte[] data = CopyStreamTest.bytes(40 * 1024);
+        final DiskLruCache.Editor editor = cache.edit("aa01");
+        final OutputStream out = editor.newOutputStream();
+        for (int i = 0; i < data.length; i += 1000) {
+            out.write(data, i, Math.min(1000, data.length - i));
+        }
+        final File file = editor.commit();
+        assertNotNull(file);
+        assertEquals(data.length, file.length());
+        assertEquals(0, tempFileCount());
+        assertEquals(file, cache.getSource("aa01").file);
+    }
+
+    @Test
+    public void slabDeadSpaceCountsAgainstByteLimit() throws Exception {
+        final int size = 20 * 1024;
+        final DiskLruCache cache = open(2 * 1024 * 1024, 1000);
+        cache.setSlabStoreEnabled(true);
+        for (int i = 0; i < 100; i++) {
+            write(cache, key(i), size);
+        }
+        // 2 割を消す。詰め直すほどではない
+        for (int i = 0; i < 100; i += 5) {
+            cache.removeEntry(key(i));
+        }
+        for (int i = 100; i < 120; i++) {
+            write(cache, key(i), size);
+        }
+
+        // 中身は上限に収まっていても、空いたスラブの分だけ追い出される
+        final long deadline = System.currentTimeMillis() + 10000;
+        int count;
+        do {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+            count = 0;
+            for (int i = 0; i < 120; i++) {
+                if (cache.containsKey(key(i))) {
+                    count++;
+                }
+            }
+        } while (count >= 100);
+        for (int i = 100; i < 120; i++) {
+            assertTrue(cache.containsKey(key(i)));
+        }
+    }
+
+    @Test
+    public void missingEntryIsNotFound() throws IOException {
+        final DiskLruCache cache = open(10);
+        assertNull(cache.getSource("aa01"));
+        assertNull(cache.getFile("aa01"));
+    }
+
+    private int tempFileCount() {
+        int count = 0;
+        final String[] names = mDir.list();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].endsWith(".tmp")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private DiskLruCache open(int maxItems) {
+        return open(MAX_BYTES, maxItems);
+    }
+
+    private DiskLruCache open(long maxBytes, int maxItems) {
+        final DiskLruCache cache = DiskLruCache.openCache(null, mDir, maxBytes, maxItems);
+        assertNotNull(cache);
+        mOpened.add(cache);
+        return cache;
+    }
+
+    /**
+     * Waits for the background trim to bring the cache within its limit.
+     * Trims run while entries are still being written, so the cache ends up
+     * between the low watermark and the limit.
+     *
+     * @return the number of the written entries left
+     */
+    private static int awaitEntries(DiskLruCache cache, int written, int limit) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            int count = 0;
+            for (int i = 0; i < written; i++) {
+                if (cache.containsKey(key(i))) {
+                    count++;
+                }
+            }
+            if (count <= limit) {
+                assertTrue(count >= limit * 9 / 10);
+                return count;
+            }
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private void assertNewestKept(DiskLruCache cache, int written, int kept) {
+        for (int i = 0; i < written; i++) {
+            final boolean expected = i >= written - kept;
+            assertEquals(expected, cache.containsKey(key(i)));
+            assertEquals(expected, new File(DiskLruCache.createFilePath(mDir, key(i))).exists());
+        }
+    }
+
+    private static String key(int i) {
+        return "k" + (100 + i);
+    }
+
+    private void appendToJournal(String text) throws IOException {
+        final OutputStream out = new FileOutputStream(new File(mDir, "journal"), true);
+        try {
+            out.write(text.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    static void write(DiskLruCache cache, String key, int size) throws IOException {
+        final DiskLruCache.Editor editor = cache.edit(key);
+        try {
+            editor.newOutputStream().write(new byte[size]);
+            editor.commit();
+        } finally {
+            editor.abortUnlessCommitted();
+        }
+    }
+}
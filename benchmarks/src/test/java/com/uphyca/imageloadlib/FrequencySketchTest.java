@@ -0,0 +1,52 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void unseenKeyHasZeroFrequency() {
+        final FrequencySketch sketch = new FrequencySketch(512);
+        assertEquals(0, sketch.frequency("never"));
+    }
+
+    @Test
+    public void countsUpToFifteen() {
+        final FrequencySketch sketch = new FrequencySketch(512);
+        for (int i = 1; i <= 20; i++) {
+            sketch.increment("key");
+            assertEquals(Math.min(i, 15), sketch.frequency("key"));
+        }
+    }
+
+    @Test
+    public void neverUnderestimates() {
+        final FrequencySketch sketch = new FrequencySketch(512);
+        // 半減が起きない回数に収める
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < i % 10; j++) {
+                sketch.increment("key" + i);
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(sketch.frequency("key" + i) >= i % 10);
+        }
+    }
+
+    @Test
+    public void halvesCountersAfterSamplePeriod() {
+        final FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 15; i++) {
+            sketch.increment("hot");
+        }
+        assertEquals(15, sketch.frequency("hot"));
+        // 16 * 10 回数えると全カウンタが半分になる
+        for (int i = 0; i < 200; i++) {
+            sketch.increment("cold" + i);
+        }
+        assertTrue(sketch.frequency("hot") <= 10);
+    }
+}
@@ -0,0 +1,29 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class HashKeyTest {
+
+    @Test
+    public void matchesLegacyKeys() {
+        // キーが変わると既存のディスクキャッシュが読めなくなる
+        final String[] urls = BenchmarkFiles.createUrls(100);
+        for (int i = 0; i < urls.length; i++) {
+            assertEquals(HashKeyBenchmark.legacyHashKeyForDisk(urls[i]), ImageCache.hashKeyForDisk(urls[i]));
+        }
+    }
+
+    @Test
+    public void keyIsFortyHexDigits() {
+        assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", ImageCache.hashKeyForDisk(""));
+    }
+
+    @Test
+    public void requestComputesDiskKeyOnce() {
+        final ImageRequest request = new ImageRequest("http://images.example.com/a.jpg", 100, 100);
+        assertSame(request.getDiskKey(), request.getDiskKey());
+    }
+}
@@ -0,0 +1,137 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HttpRevalidationTest {
+
+    private static final int BODY_SIZE = 20000;
+    private static final long MINUTE = 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private LoopbackServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LoopbackServer(BODY_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void fullResponseCarriesValidators() {
+        mServer.setCacheControl("max-age=60");
+        final long before = System.currentTimeMillis();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ImageFetcher.DownloadResult result = ImageFetcher.downloadUrlToStream(mServer.url("/a.jpg"), null, out);
+
+        assertEquals(ImageFetcher.DownloadResult.OK, result.status);
+        assertEquals(BODY_SIZE, out.size());
+        assertNotNull(result.validators);
+        assertEquals(LoopbackServer.etagOf("/a.jpg"), result.validators.etag);
+        assertTrue(result.validators.responseTime >= before);
+        assertEquals(MINUTE, result.validators.expires - result.validators.responseTime);
+    }
+
+    @Test
+    public void matchingEtagGetsNotModifiedWithoutBody() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final DiskLruCache.Validators stored = new DiskLruCache.Validators(LoopbackServer.etagOf("/a.jpg"), 0, 1, 0);
+        final ImageFetcher.DownloadResult result = ImageFetcher.downloadUrlToStream(mServer.url("/a.jpg"), stored,
+                out);
+
+        assertEquals(ImageFetcher.DownloadResult.NOT_MODIFIED, result.status);
+        assertEquals(0, out.size());
+        assertEquals(1, mServer.getNotModifiedCount());
+    }
+
+    @Test
+    public void changedEtagGetsFullBody() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final DiskLruCache.Validators stored = new DiskLruCache.Validators("\"old\"", 0, 1, 0);
+        final ImageFetcher.DownloadResult result = ImageFetcher.downloadUrlToStream(mServer.url("/a.jpg"), stored,
+                out);
+
+        assertEquals(ImageFetcher.DownloadResult.OK, result.status);
+        assertEquals(BODY_SIZE, out.size());
+        assertEquals(0, mServer.getNotModifiedCount());
+    }
+
+    @Test
+    public void notModifiedWithoutFreshnessKeepsStoredLifetime() {
+        // max-age=60 で受け取ったエントリが 2 分後に期限切れになった
+        final long received = System.currentTimeMillis() - 2 * MINUTE;
+        final DiskLruCache.Validators stored = new DiskLruCache.Validators(LoopbackServer.etagOf("/a.jpg"), 0,
+                received + MINUTE, received);
+        assertTrue(stored.isStale(System.currentTimeMillis()));
+
+        final ImageFetcher.DownloadResult result = ImageFetcher.downloadUrlToStream(mServer.url("/a.jpg"), stored,
+                new ByteArrayOutputStream());
+        assertEquals(ImageFetcher.DownloadResult.NOT_MODIFIED, result.status);
+        final long now = System.currentTimeMillis();
+        final DiskLruCache.Validators merged = HttpCacheHeaders.merge(stored, result.validators, now);
+
+        assertEquals(stored.etag, merged.etag);
+        assertEquals(now + MINUTE, merged.expires);
+        assertFalse(merged.isStale(now));
+        assertTrue(merged.isStale(now + MINUTE));
+    }
+
+    @Test
+    public void notModifiedWithMaxAgeReplacesExpiry() {
+        mServer.setCacheControl("max-age=600");
+        final DiskLruCache.Validators stored = new DiskLruCache.Validators(LoopbackServer.etagOf("/a.jpg"), 0, 1, 0);
+        final ImageFetcher.DownloadResult result = ImageFetcher.downloadUrlToStream(mServer.url("/a.jpg"), stored,
+                new ByteArrayOutputStream());
+        final long now = System.currentTimeMillis();
+        final DiskLruCache.Validators merged = HttpCacheHeaders.merge(stored, result.validators, now);
+
+        assertEquals(10 * MINUTE, merged.expires - result.validators.responseTime);
+    }
+
+    @Test
+    public void neverStaleEntryStaysNeverStale() {
+        final DiskLruCache.Validators stored = new DiskLruCache.Validators("\"v\"", 0, 0, 0);
+        assertEquals(0, HttpCacheHeaders.merge(stored, null, System.currentTimeMillis()).expires);
+    }
+
+    @Test
+    public void journalKeepsResponseTime() throws IOException {
+        final File dir = mTemp.newFolder("cache");
+        final DiskLruCache cache = DiskLruCache.openCache(null, dir, 1024 * 1024, 10);
+        final DiskLruCache.Editor editor = cache.edit("aa01");
+        editor.newOutputStream().write(new byte[10]);
+        editor.setValidators(new DiskLruCache.Validators("\"v\"", 0, 3000L, 2000L));
+        editor.commit();
+        // 受信時刻のない以前の形式の行も読める
+        DiskLruCacheTest.write(cache, "bb02", 10);
+        cache.close();
+        final OutputStream journal = new FileOutputStream(new File(dir, "journal"), true);
+        journal.write("META bb02 - 0 5000\n".getBytes("US-ASCII"));
+        journal.close();
+
+        final DiskLruCache reopened = DiskLruCache.openCache(null, dir, 1024 * 1024, 10);
+        assertEquals(2000L, reopened.getValidators("aa01").responseTime);
+        assertEquals(5000L, reopened.getValidators("bb02").expires);
+        assertEquals(0L, reopened.getValidators("bb02").responseTime);
+    }
+}
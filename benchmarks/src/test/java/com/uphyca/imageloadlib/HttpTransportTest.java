@@ -0,0 +1,117 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpTransportTest {
+
+    private static final int BODY_SIZE = 20000;
+    private static final int REQUESTS = 100;
+
+    private LoopbackServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LoopbackServer(BODY_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void sequentialDownloadsReuseOneConnection() {
+        for (int i = 0; i < REQUESTS; i++) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final ImageFetcher.DownloadResult result = ImageFetcher.downloadUrlToStream(mServer.url("/" + i + ".jpg"),
+                    null, out);
+            assertEquals(ImageFetcher.DownloadResult.OK, result.status);
+            assertEquals(BODY_SIZE, out.size());
+        }
+        assertEquals(REQUESTS, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void notModifiedResponsesReuseTheConnection() {
+        for (int i = 0; i < REQUESTS; i++) {
+            final String path = "/" + i + ".jpg";
+            final DiskLruCache.Validators stored = new DiskLruCache.Validators(LoopbackServer.etagOf(path), 0, 1, 0);
+            final ImageFetcher.DownloadResult result = ImageFetcher.downloadUrlToStream(mServer.url(path), stored,
+                    new ByteArrayOutputStream());
+            assertEquals(ImageFetcher.DownloadResult.NOT_MODIFIED, result.status);
+        }
+        assertEquals(REQUESTS, mServer.getNotModifiedCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void unreadBodyClosesTheConnection() throws IOException {
+        final HttpTransport transport = new HttpTransport(1);
+        for (int i = 0; i < 10; i++) {
+            final HttpTransport.Exchange exchange = transport.open(new URL(mServer.url("/" + i + ".jpg")));
+            try {
+                assertEquals(200, exchange.connection.getResponseCode());
+                // ボディを読まずに閉じると接続は使い回せない
+                exchange.getBody().read();
+            } finally {
+                exchange.close();
+            }
+        }
+        assertEquals(10, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void limitsRequestsPerHost() throws Exception {
+        final HttpTransport transport = new HttpTransport(2);
+        mServer.setDelayMillis(20);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 32; i++) {
+                final URL url = new URL(mServer.url("/" + i + ".jpg"));
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return fetch(transport, url);
+                    }
+                }));
+            }
+            for (final Future<Integer> future : futures) {
+                assertEquals(BODY_SIZE, future.get().intValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(2, mServer.getMaxConcurrentRequests());
+        // 同時に 2 つまでなので接続も 2 本で足りる
+        assertTrue(mServer.getConnectionCount() <= 2);
+    }
+
+    private static int fetch(HttpTransport transport, URL url) throws IOException {
+        final HttpTransport.Exchange exchange = transport.open(url);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final long copied = ImageFetcher.copyStream(exchange.getBody(), out);
+            exchange.setBodyConsumed();
+            return (int) copied;
+        } finally {
+            exchange.close();
+        }
+    }
+}
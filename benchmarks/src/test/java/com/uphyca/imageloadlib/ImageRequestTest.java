@@ -0,0 +1,25 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+public class ImageRequestTest {
+
+    private static final String URL = "http://images.example.com/a.jpg";
+
+    @Test
+    public void decodesToRequestedSize() {
+        final ImageRequest request = new ImageRequest(URL, 100, 60);
+        assertEquals(100, request.width);
+        assertEquals(60, request.height);
+    }
+
+    @Test
+    public void nearlyEqualSizesShareMemCacheKey() {
+        // 32px 単位で切り上げたサイズが同じなら同じエントリ
+        assertEquals(new ImageRequest(URL, 100, 100).memCacheKey, new ImageRequest(URL, 128, 97).memCacheKey);
+        assertFalse(new ImageRequest(URL, 128, 128).memCacheKey.equals(new ImageRequest(URL, 129, 128).memCacheKey));
+    }
+}
@@ -0,0 +1,137 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.widget.ImageView;
+
+public class PrefetchTest {
+
+    private static final int BODY_SIZE = 20000;
+    private static final long DOWNLOAD_MILLIS = 300;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private LoopbackServer mServer;
+    private ImageFetcher mFetcher;
+    private final CountDownLatch mDiskHits = new CountDownLatch(1);
+    private final AtomicInteger mDiskMisses = new AtomicInteger();
+    // ロードは ImageView を弱く持つので、待っている間回収されないようにする
+    private final ImageView mImageView = new ImageView();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LoopbackServer(BODY_SIZE);
+        mServer.setDelayMillis(DOWNLOAD_MILLIS);
+
+        final ImageCacheParams params = new ImageCacheParams.ImageCacheParamsPostEclair("prefetch");
+        // 読み直しがディスクに届くようにする
+        params.encodedMemCacheSize = 0;
+        final android.content.Context context = BenchmarkFiles.createContext(mTemp.newFolder("cache"));
+        mFetcher = new ImageFetcher(context) {
+        };
+        mFetcher.setImageCache(new ImageCache(context, params) {
+        });
+
+        ImageLoadMetrics.setEnabled(true);
+        ImageLoadMetrics.setListener(new ImageLoadMetrics.Listener() {
+            @Override
+            public void onCount(int counter, long delta) {
+                if (counter == ImageLoadMetrics.DISK_HIT) {
+                    mDiskHits.countDown();
+                } else if (counter == ImageLoadMetrics.DISK_MISS) {
+                    mDiskMisses.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onStageCompleted(int stage, long millis) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        ImageLoadMetrics.setListener(null);
+        ImageLoadMetrics.setEnabled(false);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void loadWaitsForRunningPrefetch() throws Exception {
+        final String url = mServer.url("/a.jpg");
+        mFetcher.prefetch(Collections.singleton(url), 100, 100, ImageFetcher.PREFETCH_DISK);
+        awaitRequests(1);
+
+        // 先読みのダウンロード中に表示される
+        mFetcher.loadImage(url, mImageView, 0, 100, 100);
+
+        assertTrue(mDiskHits.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void prefetchesOfOneUrlShareTheDownload() throws Exception {
+        final String url = mServer.url("/a.jpg");
+        mFetcher.prefetch(Collections.singleton(url), 100, 100, ImageFetcher.PREFETCH_DISK);
+        awaitRequests(1);
+        mFetcher.prefetch(Collections.singleton(url), 200, 200, ImageFetcher.PREFETCH_DISK);
+
+        assertTrue(mDiskHits.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void cancelledQueuedLoadReleasesTheDownload() throws Exception {
+        // ネットワークのスレッドをすべて埋める
+        final ImageView[] busy = new ImageView[6];
+        for (int i = 0; i < busy.length; i++) {
+            busy[i] = new ImageView();
+            mFetcher.loadImage(mServer.url("/busy" + i + ".jpg"), busy[i], 0, 100, 100);
+        }
+        awaitRequests(4);
+
+        // 待ち行列にいる間に ImageView が別の URL に使い回される
+        final String url = mServer.url("/x.jpg");
+        final ImageView other = new ImageView();
+        mFetcher.loadImage(url, mImageView, 0, 100, 100);
+        // ディスクを見終えてダウンロードを引き受けるまで待つ
+        awaitDiskMisses(busy.length + 1);
+        Thread.sleep(50);
+        mFetcher.loadImage(mServer.url("/y.jpg"), mImageView, 0, 100, 100);
+        mFetcher.loadImage(url, other, 0, 100, 100);
+
+        awaitRequests(busy.length + 2);
+        assertEquals(busy.length + 2, mServer.getRequestCount());
+    }
+
+    private void awaitDiskMisses(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (mDiskMisses.get() < count) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (mServer.getRequestCount() < count) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
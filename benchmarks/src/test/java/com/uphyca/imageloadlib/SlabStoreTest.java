@@ -0,0 +1,194 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SlabStoreTest {
+
+    private static final int ENTRY_SIZE = 30 * 1024;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mTemp.newFolder("cache");
+    }
+
+    @Test
+    public void putThenGet() throws IOException {
+        final SlabStore store = SlabStore.open(mDir);
+        final byte[] data = bytes(1000, 7);
+        put(store, "aa01", data);
+        assertTrue(store.contains("aa01"));
+        assertArrayEquals(data, store.get("aa01"));
+        assertNull(store.get("bb02"));
+    }
+
+    @Test
+    public void reopenRebuildsIndexFromRecords() throws IOException {
+        final SlabStore store = SlabStore.open(mDir);
+        put(store, "aa01", bytes(100, 1));
+        put(store, "bb02", bytes(200, 2));
+        // 後から書いたものが残る
+        put(store, "aa01", bytes(300, 3));
+
+        final SlabStore reopened = SlabStore.open(mDir);
+        assertEquals(2, reopened.keySet().size());
+        assertArrayEquals(bytes(300, 3), reopened.get("aa01"));
+        assertArrayEquals(bytes(200, 2), reopened.get("bb02"));
+    }
+
+    @Test
+    public void removedEntryStaysRemovedAfterReopen() throws IOException {
+        final SlabStore store = SlabStore.open(mDir);
+        put(store, "aa01", bytes(100, 1));
+        put(store, "bb02", bytes(100, 2));
+        store.remove("aa01");
+
+        final SlabStore reopened = SlabStore.open(mDir);
+        assertFalse(reopened.contains("aa01"));
+        assertArrayEquals(bytes(100, 2), reopened.get("bb02"));
+    }
+
+    @Test
+    public void retainAllDropsOtherKeys() throws IOException {
+        final SlabStore store = SlabStore.open(mDir);
+        put(store, "aa01", bytes(100, 1));
+        put(store, "bb02", bytes(100, 2));
+        store.retainAll(new HashSet<String>(Collections.singleton("bb02")));
+        assertFalse(store.contains("aa01"));
+        assertTrue(store.contains("bb02"));
+    }
+
+    @Test
+    public void compactionReclaimsMostlyDeadSlabs() throws IOException {
+        final SlabStore store = SlabStore.open(mDir);
+        // 1MB のスラブが二つ以上になるまで入れる
+        final int count = 2 * 1024 * 1024 / ENTRY_SIZE;
+        for (int i = 0; i < count; i++) {
+            put(store, key(i), bytes(ENTRY_SIZE, i));
+        }
+        final int slabs = slabCount();
+        assertTrue(slabs >= 2);
+        assertFalse(store.needsCompaction());
+
+        // 最初のスラブの大半を消す
+        for (int i = 0; i < count / 2; i++) {
+            if (i % 4 != 0) {
+                store.remove(key(i));
+            }
+        }
+        assertTrue(store.needsCompaction());
+        assertTrue(store.compact() > 0);
+        assertFalse(store.needsCompaction());
+
+        for (int i = 0; i < count; i++) {
+            if (i < count / 2 && i % 4 != 0) {
+                assertFalse(store.contains(key(i)));
+            } else {
+                assertArrayEquals(bytes(ENTRY_SIZE, i), store.get(key(i)));
+            }
+        }
+        // 詰め直した後も開き直せる
+        final SlabStore reopened = SlabStore.open(mDir);
+        assertArrayEquals(bytes(ENTRY_SIZE, 0), reopened.get(key(0)));
+    }
+
+    @Test
+    public void deadBytesCountsFilledSlabsOnly() throws IOException {
+        final SlabStore store = SlabStore.open(mDir);
+        put(store, key(0), bytes(ENTRY_SIZE, 0));
+        put(store, key(1), bytes(ENTRY_SIZE, 1));
+        // 書き込み中のスラブの空きや消したものは数えない
+        store.remove(key(0));
+        assertEquals(0, store.deadBytes());
+
+        final int count = 1024 * 1024 / ENTRY_SIZE + 1;
+        for (int i = 2; i < count; i++) {
+            put(store, key(i), bytes(ENTRY_SIZE, i));
+        }
+        assertEquals(2, slabCount());
+        final long before = store.deadBytes();
+        assertTrue(before >= ENTRY_SIZE);
+        store.remove(key(1));
+        assertTrue(store.deadBytes() >= before + ENTRY_SIZE);
+    }
+
+    @Test
+    public void compactionTakesEmptiestSlabsFirst() throws IOException {
+        final SlabStore store = SlabStore.open(mDir);
+        final int perSlab = 1024 * 1024 / (ENTRY_SIZE + 16);
+        // 4 つ目のスラブまで埋める
+        for (int i = 0; i < perSlab * 4; i++) {
+            put(store, key(i), bytes(ENTRY_SIZE, i));
+        }
+        // 1 つ目を 4 割、2 つ目を 6 割空ける
+        for (int i = 0; i < perSlab * 2 / 5; i++) {
+            store.remove(key(i));
+        }
+        for (int i = perSlab; i < perSlab + perSlab * 3 / 5; i++) {
+            store.remove(key(i));
+        }
+        assertTrue(store.needsCompaction());
+        store.compact();
+        assertFalse(store.needsCompaction());
+
+        // 2 つ目だけを詰め直せば割合に収まる
+        assertTrue(new File(new File(mDir, "slabs"), "slab_0").exists());
+        assertFalse(new File(new File(mDir, "slabs"), "slab_1").exists());
+        for (int i = 0; i < perSlab * 4; i++) {
+            if (store.contains(key(i))) {
+                assertArrayEquals(bytes(ENTRY_SIZE, i), store.get(key(i)));
+            }
+        }
+        assertTrue(store.contains(key(perSlab - 1)));
+        assertTrue(store.contains(key(perSlab * 2 - 1)));
+    }
+
+    @Test
+    public void clearDeletesSlabs() throws IOException {
+        final SlabStore store = SlabStore.open(mDir);
+        put(store, "aa01", bytes(100, 1));
+        store.clear();
+        assertFalse(store.contains("aa01"));
+        assertEquals(0, slabCount());
+        assertTrue(SlabStore.open(mDir).keySet().isEmpty());
+    }
+
+    private int slabCount() {
+        final String[] names = new File(mDir, "slabs").list();
+        return names != null ? names.length : 0;
+    }
+
+    private static void put(SlabStore store, String key, byte[] data) throws IOException {
+        store.put(key, data, data.length);
+    }
+
+    private static String key(int i) {
+        return "key" + i;
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,75 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.content.Context;
+
+public class TempFileSweepTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void leftoverDownloadsAreSweptWithDiskCacheEnabled() throws Exception {
+        final File cacheDir = mTemp.newFolder("cache");
+        final File httpDir = new File(cacheDir, "sweep-http");
+        httpDir.mkdirs();
+        final File leftover = file(httpDir, "bitmap123.tmp", System.currentTimeMillis() - HOUR);
+        final File other = file(httpDir, "other.tmp", System.currentTimeMillis() - HOUR);
+
+        final Context context = BenchmarkFiles.createContext(cacheDir);
+        final ImageFetcher.ImageFetcherParams params = new ImageFetcher.ImageFetcherParams();
+        // 一度きりの掃除を他のテストと分ける
+        params.mHttpCacheDir = "sweep-http";
+        final ImageFetcher fetcher = new ImageFetcher(context, params) {
+        };
+        fetcher.setImageCache(new ImageCache(context, new ImageCacheParams.ImageCacheParamsPostEclair("sweep")) {
+        });
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (leftover.exists()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void downloadsOfThisProcessAreKept() throws Exception {
+        final File cacheDir = mTemp.newFolder("cache");
+        final File httpDir = new File(cacheDir, "sweep-current");
+        httpDir.mkdirs();
+        final File old = file(httpDir, "bitmap1.tmp", System.currentTimeMillis() - HOUR);
+        final File current = file(httpDir, "bitmap2.tmp", System.currentTimeMillis());
+
+        final ImageFetcher.ImageFetcherParams params = new ImageFetcher.ImageFetcherParams();
+        params.mHttpCacheDir = "sweep-current";
+        new ImageFetcher(BenchmarkFiles.createContext(cacheDir), params) {
+        };
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (old.exists()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertTrue(current.exists());
+        assertFalse(old.exists());
+    }
+
+    private static File file(File dir, String name, long lastModified) throws IOException {
+        final File file = new File(dir, name);
+        assertTrue(file.createNewFile());
+        assertTrue(file.setLastModified(lastModified));
+        return file;
+    }
+}
@@ -0,0 +1,159 @@
+package com.uphyca.imageloadlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TinyLfuPolicyTest {
+
+    private static final int CACHE_ITEMS = 100;
+    private static final long ENTRY_BYTES = 1000;
+
+    @Test
+    public void beatsLruOnHotSetWithScans() {
+        final List<String> trace = hotSetWithScans(60, 40000, 1);
+        final double lru = replayLru(trace, CACHE_ITEMS);
+        final double tinyLfu = replayTinyLfu(trace, CACHE_ITEMS, Long.MAX_VALUE, 1);
+        // 毎回ヒットするのは半分を占めるホットセットの分だけ
+        assertTrue("lru=" + lru + " tinyLfu=" + tinyLfu, tinyLfu > lru + 0.1);
+        assertTrue("tinyLfu=" + tinyLfu, tinyLfu > 0.45);
+    }
+
+    @Test
+    public void limitsBytesLikeItems() {
+        final List<String> trace = hotSetWithScans(60, 40000, 2);
+        final double byItems = replayTinyLfu(trace, CACHE_ITEMS, Long.MAX_VALUE, ENTRY_BYTES);
+        final double byBytes = replayTinyLfu(trace, CACHE_ITEMS * 100, CACHE_ITEMS * ENTRY_BYTES, ENTRY_BYTES);
+        assertEquals(byItems, byBytes, 0.02);
+    }
+
+    @Test
+    public void followsChangingHotSet() {
+        // 前半と後半でホットセットが入れ替わる
+        final List<String> trace = hotSetWithScans(60, 20000, 3);
+        final List<String> later = hotSetWithScans(60, 20000, 4);
+        for (int i = 0; i < later.size(); i++) {
+            trace.add("later/" + later.get(i));
+        }
+        final Replay replay = new Replay(CACHE_ITEMS, Long.MAX_VALUE);
+        for (int i = 0; i < 30000; i++) {
+            replay.access(trace.get(i), 1);
+        }
+        replay.resetCounts();
+        for (int i = 30000; i < trace.size(); i++) {
+            replay.access(trace.get(i), 1);
+        }
+        assertTrue("hitRate=" + replay.hitRate(), replay.hitRate() > 0.45);
+    }
+
+    @Test
+    public void keepsEntriesLoadedFromJournalUntilNeeded() {
+        final TinyLfuPolicy policy = new TinyLfuPolicy(10, Long.MAX_VALUE);
+        for (int i = 0; i < 10; i++) {
+            policy.onLoad("old" + i, 1);
+        }
+        // 使われていない古いものから追い出される
+        policy.recordAccess("old0");
+        policy.onPut("new", 1);
+        assertEquals("old1", policy.selectVictim(10, Long.MAX_VALUE));
+    }
+
+    /**
+     * Half of the accesses go to a fixed hot set, the other half to keys that
+     * are never seen again, like a list scrolled through once.
+     */
+    private static List<String> hotSetWithScans(int hotKeys, int length, long seed) {
+        final Random random = new Random(seed);
+        final List<String> trace = new ArrayList<String>(length);
+        int scan = 0;
+        for (int i = 0; i < length; i++) {
+            if (random.nextBoolean()) {
+                trace.add("hot" + random.nextInt(hotKeys));
+            } else {
+                trace.add("scan" + scan++);
+            }
+        }
+        return trace;
+    }
+
+    private static double replayLru(List<String> trace, final int maxItems) {
+        final Map<String, Boolean> cache = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxItems;
+            }
+        };
+        int hits = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            if (cache.get(trace.get(i)) != null) {
+                hits++;
+            } else {
+                cache.put(trace.get(i), Boolean.TRUE);
+            }
+        }
+        return (double) hits / trace.size();
+    }
+
+    private static double replayTinyLfu(List<String> trace, int maxItems, long maxBytes, long entryBytes) {
+        final Replay replay = new Replay(maxItems, maxBytes);
+        for (int i = 0; i < trace.size(); i++) {
+            replay.access(trace.get(i), entryBytes);
+        }
+        return replay.hitRate();
+    }
+
+    /**
+     * Drives the policy the way DiskLruCache does: every lookup is recorded,
+     * a miss is downloaded and put, and entries are evicted while the cache
+     * is over one of its limits.
+     */
+    private static final class Replay {
+        private final TinyLfuPolicy mPolicy;
+        private final int mMaxItems;
+        private final long mMaxBytes;
+        private final HashMap<String, Long> mEntries = new HashMap<String, Long>();
+        private long mBytes;
+        private int mHits;
+        private int mAccesses;
+
+        Replay(int maxItems, long maxBytes) {
+            mPolicy = new TinyLfuPolicy(maxItems, maxBytes);
+            mMaxItems = maxItems;
+            mMaxBytes = maxBytes;
+        }
+
+        void access(String key, long size) {
+            mAccesses++;
+            mPolicy.recordAccess(key);
+            if (mEntries.containsKey(key)) {
+                mHits++;
+                return;
+            }
+            mEntries.put(key, size);
+            mBytes += size;
+            mPolicy.onPut(key, size);
+            while (mEntries.size() > mMaxItems || mBytes > mMaxBytes) {
+                final String victim = mPolicy.selectVictim(mMaxItems, mMaxBytes);
+                mBytes -= mEntries.remove(victim);
+                mPolicy.onRemove(victim);
+            }
+        }
+
+        void resetCounts() {
+            mHits = 0;
+            mAccesses = 0;
+        }
+
+        double hitRate() {
+            return (double) mHits / mAccesses;
+        }
+    }
+}
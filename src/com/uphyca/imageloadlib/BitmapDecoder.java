@@ -0,0 +1,302 @@
+package com.uphyca.imageloadlib;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+
+/**
+ * Decodes sampled down bitmaps. Decodes run concurrently, but each one first
+ * reserves the bytes its output bitmap will take, estimated from the bounds
+ * pass, against a budget derived from the free heap. Many thumbnails can
+ * therefore decode in parallel while a few huge images wait for each other
+ * instead of running out of memory together.
+ */
+final class BitmapDecoder {
+
+    // 空きヒープのうちデコード中の Bitmap に使ってよい割合 (1/this)
+    private static final int FREE_MEMORY_DIVIDER = 2;
+    private static final long BUDGET_POLL_MILLIS = 50L;
+
+    private static final Object sBudgetLock = new Object();
+    private static long sBytesInFlight;
+
+    private BitmapDecoder() {
+    }
+
+    /**
+     * Decode a file sampled down to the requested size. The largest power of
+     * two sample size that keeps the image at least as large as the request is
+     * used, and the result is then scaled with filtering so that it exactly
+     * covers the requested bounds.
+     *
+     * @param filePath
+     * @param reqWidth
+     * @param reqHeight
+     * @param bitmapPool
+     *            the pool to reuse bitmaps from, or null
+     * @param decodeConfig
+     *            one of the ImageCacheParams.DECODE_CONFIG_* policies
+     * @return the bitmap, or null if the file could not be decoded
+     */
+    static Bitmap decodeSampledBitmapFromFile(String filePath, int reqWidth, int reqHeight, BitmapPool bitmapPool,
+            int decodeConfig) {
+        return decodeSampledBitmap(filePath, null, reqWidth, reqHeight, bitmapPool, decodeConfig);
+    }
+
+    /**
+     * Decode encoded image bytes held in memory, sampled and scaled like
+     * {@link #decodeSampledBitmapFromFile(String, int, int, BitmapPool, int)}.
+     *
+     * @param data
+     * @param reqWidth
+     * @param reqHeight
+     * @param bitmapPool
+     *            the pool to reuse bitmaps from, or null
+     * @param decodeConfig
+     *            one of the ImageCacheParams.DECODE_CONFIG_* policies
+     * @return the bitmap, or null if the bytes could not be decoded
+     */
+    static Bitmap decodeSampledBitmapFromByteArray(byte[] data, int reqWidth, int reqHeight, BitmapPool bitmapPool,
+            int decodeConfig) {
+        return decodeSampledBitmap(null, data, reqWidth, reqHeight, bitmapPool, decodeConfig);
+    }
+
+    private static Bitmap decodeSampledBitmap(String filePath, byte[] data, int reqWidth, int reqHeight,
+            BitmapPool bitmapPool, int decodeConfig) {
+
+        // inJustDecodeBounds=true で画像のサイズをチェック
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(filePath, data, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        setPreferredConfig(options, decodeConfig);
+
+        // inSampleSize を計算
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        final int sampledWidth = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        final int sampledHeight = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+
+        // 縮小後の Bitmap も同時に存在するので合わせて予約する
+        final int bytesPerPixel = getBytesPerPixel(options.inPreferredConfig);
+        final long bytes = ((long) sampledWidth * sampledHeight + (long) reqWidth * reqHeight) * bytesPerPixel;
+        acquire(bytes);
+        try {
+            final Bitmap sampled = decodeWithPool(filePath, data, options, bitmapPool);
+            if (sampled == null) {
+                return null;
+            }
+            final Bitmap scaled = scaleToCover(sampled, reqWidth, reqHeight, bitmapPool);
+            if (scaled != sampled) {
+                // 途中の Bitmap は誰も参照していない
+                if (bitmapPool == null || !bitmapPool.put(sampled)) {
+                    sampled.recycle();
+                }
+            }
+            return scaled;
+        } finally {
+            release(bytes);
+        }
+    }
+
+    /**
+     * Decode a whole file with the config chosen by the given policy.
+     *
+     * @param filePath
+     * @param decodeConfig
+     *            one of the ImageCacheParams.DECODE_CONFIG_* policies
+     * @return the bitmap, or null if the file could not be decoded
+     */
+    static Bitmap decodeBitmapFromFile(String filePath, int decodeConfig) {
+        return decodeBitmap(filePath, null, decodeConfig);
+    }
+
+    /**
+     * Decode whole encoded image bytes with the config chosen by the given
+     * policy.
+     *
+     * @param data
+     * @param decodeConfig
+     *            one of the ImageCacheParams.DECODE_CONFIG_* policies
+     * @return the bitmap, or null if the bytes could not be decoded
+     */
+    static Bitmap decodeBitmapFromByteArray(byte[] data, int decodeConfig) {
+        return decodeBitmap(null, data, decodeConfig);
+    }
+
+    private static Bitmap decodeBitmap(String filePath, byte[] data, int decodeConfig) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        if (decodeConfig != ImageCacheParams.DECODE_CONFIG_ARGB_8888) {
+            // 形式を知るためにサイズだけ読む
+            options.inJustDecodeBounds = true;
+            decode(filePath, data, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inJustDecodeBounds = false;
+            setPreferredConfig(options, decodeConfig);
+        }
+        return decode(filePath, data, options);
+    }
+
+    /**
+     * Decodes the file, or the bytes if no file path is given.
+     */
+    private static Bitmap decode(String filePath, byte[] data, BitmapFactory.Options options) {
+        if (filePath != null) {
+            return BitmapFactory.decodeFile(filePath, options);
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * Choose the config to decode with from the bounds pass. JPEG has no alpha
+     * channel, so it loses nothing but some color depth in RGB_565, which
+     * takes half the memory of ARGB_8888.
+     */
+    private static void setPreferredConfig(BitmapFactory.Options options, int decodeConfig) {
+        final boolean opaque = decodeConfig == ImageCacheParams.DECODE_CONFIG_RGB_565
+                || (decodeConfig == ImageCacheParams.DECODE_CONFIG_AUTO && "image/jpeg".equals(options.outMimeType));
+        if (opaque) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            // 16bit で帯状になるのを抑える
+            options.inDither = true;
+        } else {
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        }
+    }
+
+    private static Bitmap decodeWithPool(String filePath, byte[] data, BitmapFactory.Options options,
+            BitmapPool bitmapPool) {
+        options.inJustDecodeBounds = false;
+
+        // プールに使える Bitmap があれば再利用する
+        final int sampleSize = Math.max(options.inSampleSize, 1);
+        final int sampledWidth = (options.outWidth + sampleSize - 1) / sampleSize;
+        final int sampledHeight = (options.outHeight + sampleSize - 1) / sampleSize;
+        if (bitmapPool != null && bitmapPool.addInBitmapOptions(options, sampledWidth, sampledHeight)) {
+            try {
+                return decode(filePath, data, options);
+            } catch (final IllegalArgumentException e) {
+                // 再利用できなかったので新しく確保する
+                clearInBitmap(options);
+            }
+        }
+
+        // inSampleSize をセットしてデコード
+        return decode(filePath, data, options);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void clearInBitmap(BitmapFactory.Options options) {
+        options.inBitmap = null;
+    }
+
+    /**
+     * Scale a bitmap down with filtering so that it covers the requested
+     * bounds exactly in one dimension and at least in the other. Bitmaps that
+     * are already small enough are returned as they are. The source bitmap is
+     * left untouched.
+     *
+     * @param bitmap
+     * @param reqWidth
+     * @param reqHeight
+     * @param bitmapPool
+     *            the pool to take the output bitmap from, or null
+     * @return the scaled bitmap, or bitmap itself
+     */
+    static Bitmap scaleToCover(Bitmap bitmap, int reqWidth, int reqHeight, BitmapPool bitmapPool) {
+        final float scale = Math.max((float) reqWidth / bitmap.getWidth(), (float) reqHeight / bitmap.getHeight());
+        if (scale >= 1f) {
+            return bitmap;
+        }
+        final int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        final int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        if (width == bitmap.getWidth() && height == bitmap.getHeight()) {
+            return bitmap;
+        }
+
+        final Bitmap.Config config = bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap scaled = bitmapPool != null ? bitmapPool.get(width, height, config) : null;
+        if (scaled != null) {
+            scaled.eraseColor(Color.TRANSPARENT);
+        } else {
+            scaled = Bitmap.createBitmap(width, height, config);
+        }
+        final Canvas canvas = new Canvas(scaled);
+        canvas.drawBitmap(bitmap, null, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG
+                | Paint.DITHER_FLAG));
+        return scaled;
+    }
+
+    /**
+     * Calculate the largest power of two sample size that keeps both
+     * dimensions of the image at least as large as requested.
+     */
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return inSampleSize;
+        }
+        while (width / (inSampleSize * 2) >= reqWidth && height / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+
+    /**
+     * The number of bytes decodes may have in flight at once: a share of what
+     * the heap can still grow to.
+     */
+    private static long getBudgetBytes() {
+        final Runtime runtime = Runtime.getRuntime();
+        final long used = runtime.totalMemory() - runtime.freeMemory();
+        return (runtime.maxMemory() - used) / FREE_MEMORY_DIVIDER;
+    }
+
+    /**
+     * Wait until the decode fits in the budget. A decode is always admitted
+     * when no other decode is running, so that an image larger than the budget
+     * can still be tried on its own.
+     */
+    private static void acquire(long bytes) {
+        synchronized (sBudgetLock) {
+            boolean interrupted = false;
+            // ヒープの空きは GC でも増えるので、通知がなくても定期的に見直す
+            while (sBytesInFlight > 0 && sBytesInFlight + bytes > getBudgetBytes()) {
+                try {
+                    sBudgetLock.wait(BUDGET_POLL_MILLIS);
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            sBytesInFlight += bytes;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void release(long bytes) {
+        synchronized (sBudgetLock) {
+            sBytesInFlight -= bytes;
+            sBudgetLock.notifyAll();
+        }
+    }
+}
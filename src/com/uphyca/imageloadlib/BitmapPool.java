@@ -0,0 +1,264 @@
+package com.uphyca.imageloadlib;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * A pool of mutable bitmaps that are no longer cached nor displayed, handed
+ * out again through {@link BitmapFactory.Options#inBitmap} so that decoding
+ * does not allocate a new bitmap every time. Bitmaps are keyed by width,
+ * height and config because the platform only reuses an exact match before
+ * KitKat; from KitKat on any bitmap whose allocation is large enough is
+ * reused. The pool has its own byte budget and drops the oldest bitmaps when
+ * it is exceeded.
+ */
+public class BitmapPool {
+
+    private final int mMaxSize;
+    private int mSize;
+
+    private final HashMap<Key, LinkedList<Bitmap>> mBitmaps = new HashMap<Key, LinkedList<Bitmap>>();
+    // 古い順
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize
+     *            the byte budget of the pool
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return true if decoders on this platform can reuse bitmaps
+     */
+    public static boolean isSupported() {
+        return Utils.hasHoneycomb();
+    }
+
+    /**
+     * Adds a bitmap nobody references anymore. Bitmaps that can not be reused
+     * are ignored.
+     *
+     * @return true if the bitmap was added
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (!isSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null) {
+            return false;
+        }
+        final int size = getAllocationSize(bitmap);
+        if (size > mMaxSize) {
+            return false;
+        }
+
+        final Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        LinkedList<Bitmap> bitmaps = mBitmaps.get(key);
+        if (bitmaps == null) {
+            bitmaps = new LinkedList<Bitmap>();
+            mBitmaps.put(key, bitmaps);
+        }
+        bitmaps.addLast(bitmap);
+        mOrder.addLast(bitmap);
+        mSize += size;
+        mPutCount++;
+
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * Takes a bitmap of exactly the given size and config out of the pool.
+     *
+     * @return a reusable bitmap or null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        final LinkedList<Bitmap> bitmaps = mBitmaps.get(new Key(width, height, config));
+        if (bitmaps == null || bitmaps.isEmpty()) {
+            mMissCount++;
+            return null;
+        }
+        final Bitmap bitmap = bitmaps.removeLast();
+        mOrder.remove(bitmap);
+        mSize -= getAllocationSize(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Takes the smallest bitmap whose allocation holds at least the given
+     * number of bytes out of the pool. Only decoders on KitKat and later can
+     * reuse such a bitmap for a different size or config.
+     *
+     * @return a reusable bitmap or null
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public synchronized Bitmap getAtLeast(int byteCount) {
+        Bitmap best = null;
+        int bestSize = 0;
+        for (Bitmap bitmap : mOrder) {
+            final int size = bitmap.getAllocationByteCount();
+            if (size >= byteCount && (best == null || size < bestSize)) {
+                best = bitmap;
+                bestSize = size;
+            }
+        }
+        if (best == null) {
+            mMissCount++;
+            return null;
+        }
+        removeFromKey(best);
+        mOrder.remove(best);
+        mSize -= bestSize;
+        mHitCount++;
+        return best;
+    }
+
+    /**
+     * Sets up options for a decode of the given output size so that it reuses
+     * a pooled bitmap if there is one. The options are made mutable in any
+     * case so that the result can be pooled later on.
+     *
+     * @return true if a pooled bitmap was attached to the options
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public boolean addInBitmapOptions(BitmapFactory.Options options, int width, int height) {
+        if (!isSupported()) {
+            return false;
+        }
+        options.inMutable = true;
+        final Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig
+                : Bitmap.Config.ARGB_8888;
+        final Bitmap inBitmap;
+        if (Utils.hasKitKat()) {
+            // KitKat 以降は確保済みのバイト数が足りればサイズも inSampleSize も問わない
+            inBitmap = getAtLeast(width * height * BitmapDecoder.getBytesPerPixel(config));
+        } else if (options.inSampleSize > 1) {
+            // KitKat より前は inSampleSize が 1 で同じサイズのときだけ再利用できる
+            return false;
+        } else {
+            inBitmap = get(width, height, config);
+        }
+        if (inBitmap != null) {
+            options.inBitmap = inBitmap;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drops every pooled bitmap.
+     */
+    public synchronized void evictAll() {
+        trimToSize(-1);
+    }
+
+    private void trimToSize(int maxSize) {
+        while (mSize > maxSize && !mOrder.isEmpty()) {
+            final Bitmap eldest = mOrder.removeFirst();
+            removeFromKey(eldest);
+            mSize -= getAllocationSize(eldest);
+            mEvictionCount++;
+        }
+    }
+
+    private void removeFromKey(Bitmap bitmap) {
+        final Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        final LinkedList<Bitmap> bitmaps = mBitmaps.get(key);
+        if (bitmaps != null) {
+            for (Iterator<Bitmap> it = bitmaps.iterator(); it.hasNext();) {
+                if (it.next() == bitmap) {
+                    it.remove();
+                    break;
+                }
+            }
+            if (bitmaps.isEmpty()) {
+                mBitmaps.remove(key);
+            }
+        }
+    }
+
+    /**
+     * The bytes the bitmap holds, which may be more than it uses once a decode
+     * on KitKat reused it for a smaller image.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getAllocationSize(Bitmap bitmap) {
+        if (Utils.hasKitKat()) {
+            return bitmap.getAllocationByteCount();
+        }
+        return ImageCache.getBitmapSize(bitmap);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return "BitmapPool[size=" + mSize + ",maxSize=" + mMaxSize + ",hits=" + mHitCount + ",misses=" + mMissCount
+                + ",hitRate=" + hitPercent + "%]";
+    }
+
+    private static final class Key {
+        private final int width;
+        private final int height;
+        private final Bitmap.Config config;
+
+        Key(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return width == other.width && height == other.height && config == other.config;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = width;
+            result = 31 * result + height;
+            result = 31 * result + (config != null ? config.hashCode() : 0);
+            return result;
+        }
+    }
+}
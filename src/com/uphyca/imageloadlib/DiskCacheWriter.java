@@ -0,0 +1,164 @@
+package com.uphyca.imageloadlib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+
+/**
+ * Persists bitmaps to a {@link DiskLruCache} on a background thread so that
+ * callers of {@link ImageCache#addBitmapToCache(String, Bitmap)} never wait
+ * for compression or flash writes. Pending writes are merged by key, written
+ * in batches, and can be read back before they reach the disk.
+ */
+class DiskCacheWriter {
+    private static final String TAG = "DiskCacheWriter";
+
+    private static final int MAX_BATCH_SIZE = 8;
+
+    private final DiskLruCache mDiskCache;
+    private final ImageCache mImageCache;
+
+    // 書き込み待ちの Bitmap。同じキーは後から来たものに置き換える
+    private final LinkedHashMap<String, Bitmap> mPending = new LinkedHashMap<String, Bitmap>();
+    // 書き込み中の Bitmap。参照の解放は書き込みスレッドが行う
+    private final ArrayList<Bitmap> mWriting = new ArrayList<Bitmap>(MAX_BATCH_SIZE);
+    private boolean mDrainScheduled;
+
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(0, 1, 30L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            drain();
+        }
+    };
+
+    DiskCacheWriter(DiskLruCache diskCache, ImageCache imageCache) {
+        mDiskCache = diskCache;
+        mImageCache = imageCache;
+    }
+
+    /**
+     * Queues a bitmap to be written under the given disk key. The bitmap is
+     * kept out of the reuse pool until it has been written.
+     */
+    void enqueue(String key, Bitmap bitmap) {
+        mImageCache.retainDisplayedBitmap(bitmap);
+        Bitmap replaced;
+        synchronized (mPending) {
+            replaced = mPending.put(key, bitmap);
+            if (replaced != null && isWriting(replaced)) {
+                replaced = null;
+            }
+            if (!mDrainScheduled) {
+                mDrainScheduled = true;
+                mExecutor.execute(mDrainRunnable);
+            }
+        }
+        if (replaced != null) {
+            mImageCache.releaseDisplayedBitmap(replaced);
+        }
+    }
+
+    /**
+     * @return the bitmap waiting to be written under the given key, or null
+     */
+    Bitmap get(String key) {
+        synchronized (mPending) {
+            return mPending.get(key);
+        }
+    }
+
+    boolean contains(String key) {
+        synchronized (mPending) {
+            return mPending.containsKey(key);
+        }
+    }
+
+    /**
+     * Drops every pending write. A batch already being written stops at the
+     * next bitmap.
+     */
+    void clear() {
+        final ArrayList<Bitmap> dropped = new ArrayList<Bitmap>();
+        synchronized (mPending) {
+            for (Bitmap bitmap : mPending.values()) {
+                if (!isWriting(bitmap)) {
+                    dropped.add(bitmap);
+                }
+            }
+            mPending.clear();
+        }
+        for (int i = 0; i < dropped.size(); i++) {
+            mImageCache.releaseDisplayedBitmap(dropped.get(i));
+        }
+    }
+
+    private boolean isWriting(Bitmap bitmap) {
+        for (int i = 0; i < mWriting.size(); i++) {
+            if (mWriting.get(i) == bitmap) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        final ArrayList<String> keys = new ArrayList<String>(MAX_BATCH_SIZE);
+        final ArrayList<Bitmap> bitmaps = new ArrayList<Bitmap>(MAX_BATCH_SIZE);
+        while (true) {
+            synchronized (mPending) {
+                if (mPending.isEmpty()) {
+                    mDrainScheduled = false;
+                    return;
+                }
+                final Iterator<Map.Entry<String, Bitmap>> it = mPending.entrySet().iterator();
+                while (it.hasNext() && keys.size() < MAX_BATCH_SIZE) {
+                    final Map.Entry<String, Bitmap> entry = it.next();
+                    keys.add(entry.getKey());
+                    bitmaps.add(entry.getValue());
+                }
+                mWriting.addAll(bitmaps);
+            }
+
+            for (int i = 0; i < keys.size(); i++) {
+                // clear() で捨てられたものは書かない
+                if (contains(keys.get(i))) {
+                    mDiskCache.put(keys.get(i), bitmaps.get(i));
+                }
+            }
+
+            synchronized (mPending) {
+                for (int i = 0; i < keys.size(); i++) {
+                    // 書き込み中に新しい Bitmap が来ていたら残しておく
+                    if (mPending.get(keys.get(i)) == bitmaps.get(i)) {
+                        mPending.remove(keys.get(i));
+                    }
+                }
+                mWriting.clear();
+            }
+            for (int i = 0; i < bitmaps.size(); i++) {
+                mImageCache.releaseDisplayedBitmap(bitmaps.get(i));
+            }
+            keys.clear();
+            bitmaps.clear();
+        }
+    }
+}
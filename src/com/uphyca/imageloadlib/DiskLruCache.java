@@ -17,24 +17,42 @@
 package com.uphyca.imageloadlib;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Process;
 import android.os.StatFs;
 import android.util.Log;
 
@@ -46,14 +64,67 @@ import com.uphyca.android.imageloadlib.BuildConfig;
  * can be found in the ICS source code
  * (libcore/luni/src/main/java/libcore/io/DiskLruCache.java) and is preferable
  * to this simple implementation.
+ * <p>
+ * The LRU order and the size of every entry are recorded in an append-only
+ * journal file in the cache directory. The journal is replayed once in
+ * {@link DiskLruCache#openCache(Context, File, long)}, so after a restart the
+ * eviction order and the byte total are restored without touching each cache
+ * file. The journal is compacted on a background thread once it holds enough
+ * redundant lines. HTTP validators and the expiry of an entry, if known, are
+ * kept in the journal as well, see {@link Validators}.
+ * <p>
+ * Cache files are spread over subdirectories named after the first two
+ * characters of their key, so that no single directory grows too large for
+ * the file system to handle quickly.
+ * <p>
+ * Entries are evicted on a background thread: once a commit takes the cache
+ * over one of its limits, it is trimmed a little below them so that the next
+ * few commits do not have to wait for deletes. Files the index does not know
+ * about are removed by {@link #scheduleMaintenance()}; this is safe because a
+ * directory is only ever indexed by one open instance.
+ * <p>
+ * Optionally, small entries are packed into slab files instead of having a
+ * file each, see {@link #setSlabStoreEnabled(boolean)}. Their bytes are read
+ * with {@link #getSource(String)}. Slab space left by removed entries counts
+ * against the byte limit until it is compacted.
  */
 public abstract class DiskLruCache {
     private static final String TAG = "DiskLruCache";
 
+    /** Evict the least recently used entry. */
+    public static final int EVICTION_LRU = 0;
+    /**
+     * Keep new entries in a small window, and let an entry leaving the window
+     * replace the least recently used entry only if it was accessed more
+     * often recently. One pass over many images seen once then can not flush
+     * the images used all the time.
+     */
+    public static final int EVICTION_TINY_LFU = 1;
+
     private static final int INITIAL_CAPACITY = 32;
     private static final float LOAD_FACTOR = 0.75f;
 
     private static final String CACHE_FILENAME_PREFIX = "cache_";
+    private static final String TEMP_FILENAME_SUFFIX = ".tmp";
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String JOURNAL_MAGIC = "com.uphyca.imageloadlib.DiskLruCache";
+    private static final String JOURNAL_VERSION = "1";
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String META = "META";
+    // ジャーナル上で値がないことを表す
+    private static final String NO_VALUE = "-";
+
+    // ジャーナルを圧縮するまでに許容する冗長な行数
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    // 上限を超えたらこの割合まで減らす
+    private static final int LOW_WATERMARK_PERCENT = 90;
+    // これより古い一時ファイルは書き込み途中で捨てられたものとみなす
+    private static final long STALE_TEMP_FILE_AGE_MILLIS = 60 * 60 * 1000L; // 1 hour
 
     private static final int IO_BUFFER_SIZE = 1 * 1024; // 1KB
     private CompressFormat mCompressFormat = CompressFormat.JPEG;
@@ -61,15 +132,161 @@ public abstract class DiskLruCache {
 
     private final File mCacheDir;
 
-    private static final int MAX_REMOVALS = 4;
-    private final int maxCacheItemSize = 64; // 64 item default
+    public static final int DEFAULT_MAX_ITEM_COUNT = 64;
+    // ディレクトリを分けるキーの先頭の文字数
+    private static final int SHARD_PREFIX_LENGTH = 2;
+
+    private final int maxCacheItemSize;
     private long maxCacheByteSize = 1024 * 1024 * 5; // 5MB default
 
     private int cacheSize = 0;
-    private int cacheByteSize = 0;
+    private long cacheByteSize = 0;
+
+    // ディレクトリごとに開いているインスタンス。同じジャーナルに二つのインデックスが書かないようにする
+    private static final HashMap<String, DiskLruCache> sOpenCaches = new HashMap<String, DiskLruCache>();
+
+    private final Map<String, CacheEntry> mLinkedHashMap = Collections
+            .synchronizedMap(new LinkedHashMap<String, CacheEntry>(INITIAL_CAPACITY, LOAD_FACTOR, true));
+
+    private int mEvictionPolicy = EVICTION_LRU;
+    // EVICTION_TINY_LFU のときだけ使う。インデックスのロックで守る
+    private TinyLfuPolicy mTinyLfu;
+
+    private final File mJournalFile;
+    private final File mJournalFileTmp;
+    private Writer mJournalWriter;
+    private int mRedundantOpCount;
+    // インデックスのロックで守る
+    private boolean mTrimScheduled;
+    private boolean mClosed;
+    private SlabStore mSlabStore;
+    private boolean mCompactionScheduled;
+
+    /**
+     * Runs journal compaction, trimming and maintenance off the caller's
+     * thread.
+     */
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Runnable mCompactJournalRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            synchronized (mLinkedHashMap) {
+                if (mJournalWriter == null || !journalRebuildRequired()) {
+                    return;
+                }
+                try {
+                    rebuildJournal();
+                } catch (final IOException e) {
+                    Log.e(TAG, "Error in compactJournal: " + e.getMessage());
+                }
+            }
+        }
+    };
+
+    private final Runnable mTrimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            synchronized (mLinkedHashMap) {
+                mTrimScheduled = false;
+                if (mClosed) {
+                    return;
+                }
+                trimToSize(maxCacheItemSize * LOW_WATERMARK_PERCENT / 100, maxCacheByteSize
+                        * LOW_WATERMARK_PERCENT / 100);
+            }
+        }
+    };
+
+    private final Runnable mCompactSlabsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            synchronized (mLinkedHashMap) {
+                mCompactionScheduled = false;
+                if (mSlabStore == null || mClosed) {
+                    return;
+                }
+                final long reclaimed = mSlabStore.compact();
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "compactSlabs - Reclaimed " + reclaimed + " bytes");
+                }
+            }
+        }
+    };
 
-    private final Map<String, String> mLinkedHashMap = Collections.synchronizedMap(new LinkedHashMap<String, String>(
-            INITIAL_CAPACITY, LOAD_FACTOR, true));
+    private final Runnable mMaintenanceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runMaintenance();
+        }
+    };
+
+    /**
+     * An index entry. The file path is derived from the key, so only the size
+     * and the validators are kept in memory.
+     */
+    private static final class CacheEntry {
+        private final String key;
+        private final long size;
+        private final Validators validators;
+
+        private CacheEntry(String key, long size) {
+            this(key, size, null);
+        }
+
+        private CacheEntry(String key, long size, Validators validators) {
+            this.key = key;
+            this.size = size;
+            this.validators = validators;
+        }
+    }
+
+    /**
+     * What the server said about the bytes of an entry: the validators to
+     * revalidate it with and when it stops being fresh.
+     */
+    public static final class Validators {
+        /** The ETag, or null if the server sent none. */
+        public final String etag;
+        /** The Last-Modified time in milliseconds, or 0 if unknown. */
+        public final long lastModified;
+        /** When the entry becomes stale in milliseconds, or 0 for never. */
+        public final long expires;
+        /** When the response was received in milliseconds, or 0 if unknown. */
+        public final long responseTime;
+
+        public Validators(String etag, long lastModified, long expires) {
+            this(etag, lastModified, expires, 0);
+        }
+
+        public Validators(String etag, long lastModified, long expires, long responseTime) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+            this.responseTime = responseTime;
+        }
+
+        /**
+         * @param now
+         *            the current time in milliseconds
+         * @return true if the entry should be revalidated
+         */
+        public boolean isStale(long now) {
+            return expires != 0 && now >= expires;
+        }
+    }
 
     /**
      * A filename filter to use to identify the cache filenames which have
@@ -82,6 +299,22 @@ public abstract class DiskLruCache {
         }
     };
 
+    /**
+     * The stored bytes of an entry: its cache file, or a copy of its bytes if
+     * the entry is held in a slab.
+     */
+    public static final class Source {
+        /** The cache file, or null if the entry is held in a slab. */
+        public final File file;
+        /** The bytes of the entry if it is held in a slab, otherwise null. */
+        public final byte[] bytes;
+
+        Source(File file, byte[] bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+
     /**
      * Used to fetch an instance of DiskLruCache.
      * 
@@ -91,21 +324,112 @@ public abstract class DiskLruCache {
      * @return
      */
     public static DiskLruCache openCache(Context context, File cacheDir, long maxByteSize) {
-        if (!cacheDir.exists()) {
-            cacheDir.mkdir();
-        }
+        return openCache(context, cacheDir, maxByteSize, DEFAULT_MAX_ITEM_COUNT);
+    }
 
-        if (cacheDir.isDirectory() && cacheDir.canWrite() && getUsableSpace(cacheDir) > maxByteSize) {
-            if (Utils.hasEclair()) {
-                return new DiskLruCachePostEclair(cacheDir, maxByteSize);
-            } else {
-                return new DiskLruCachePreEclair(cacheDir, maxByteSize);
+    /**
+     * Used to fetch an instance of DiskLruCache. Everyone opening the same
+     * directory shares the instance that opened it first, with the limits it
+     * was opened with, until it is {@link #close() closed}.
+     * 
+     * @param context
+     * @param cacheDir
+     * @param maxByteSize
+     * @param maxItemCount
+     *            the number of entries the cache holds at most
+     * @return
+     */
+    public static DiskLruCache openCache(Context context, File cacheDir, long maxByteSize, int maxItemCount) {
+        return openCache(context, cacheDir, maxByteSize, maxItemCount, EVICTION_LRU, false);
+    }
+
+    /**
+     * Used to fetch an instance of DiskLruCache like
+     * {@link #openCache(Context, File, long, int)}. The eviction policy and the
+     * slab store are only set up by the open that creates the instance; later
+     * opens of the same directory get it as it is, so they neither lose the
+     * access history nor drop the slabs.
+     * 
+     * @param context
+     * @param cacheDir
+     * @param maxByteSize
+     * @param maxItemCount
+     *            the number of entries the cache holds at most
+     * @param evictionPolicy
+     *            see {@link #setEvictionPolicy(int)}
+     * @param slabStoreEnabled
+     *            see {@link #setSlabStoreEnabled(boolean)}
+     * @return
+     */
+    public static DiskLruCache openCache(Context context, File cacheDir, long maxByteSize, int maxItemCount,
+            int evictionPolicy, boolean slabStoreEnabled) {
+        final String path = getCanonicalPath(cacheDir);
+        synchronized (sOpenCaches) {
+            final DiskLruCache open = sOpenCaches.get(path);
+            if (open != null) {
+                return open;
+            }
+
+            if (!cacheDir.exists()) {
+                cacheDir.mkdir();
+            }
+
+            if (cacheDir.isDirectory() && cacheDir.canWrite() && getUsableSpace(cacheDir) > maxByteSize) {
+                final DiskLruCache cache;
+                if (Utils.hasEclair()) {
+                    cache = new DiskLruCachePostEclair(cacheDir, maxByteSize, maxItemCount);
+                } else {
+                    cache = new DiskLruCachePreEclair(cacheDir, maxByteSize, maxItemCount);
+                }
+                try {
+                    cache.initialize();
+                    cache.setEvictionPolicy(evictionPolicy);
+                    cache.setSlabStoreEnabled(slabStoreEnabled);
+                    sOpenCaches.put(path, cache);
+                    return cache;
+                } catch (final IOException e) {
+                    Log.e(TAG, "Error in openCache: " + e.getMessage());
+                }
             }
         }
 
         return null;
     }
 
+    private static String getCanonicalPath(File dir) {
+        try {
+            return dir.getCanonicalPath();
+        } catch (final IOException e) {
+            return dir.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Flushes and closes the journal and releases the directory, so that the
+     * next {@link #openCache(Context, File, long, int)} of it replays the
+     * journal into a new instance. The instance must not be used afterwards.
+     */
+    public void close() {
+        synchronized (sOpenCaches) {
+            final String path = getCanonicalPath(mCacheDir);
+            if (sOpenCaches.get(path) == this) {
+                sOpenCaches.remove(path);
+            }
+        }
+        synchronized (mLinkedHashMap) {
+            // 裏の処理は新しいインスタンスのファイルに触らないようにここで止める
+            mClosed = true;
+            if (mJournalWriter != null) {
+                try {
+                    mJournalWriter.close();
+                } catch (final IOException e) {
+                    Log.e(TAG, "Error in close: " + e.getMessage());
+                }
+                mJournalWriter = null;
+            }
+        }
+    }
+
     /**
      * Constructor that should not be called directly, instead use
      * {@link DiskLruCache#openCache(Context, File, long)} which runs some extra
@@ -113,10 +437,293 @@ public abstract class DiskLruCache {
      * 
      * @param cacheDir
      * @param maxByteSize
+     * @param maxItemCount
      */
-    private DiskLruCache(File cacheDir, long maxByteSize) {
+    private DiskLruCache(File cacheDir, long maxByteSize, int maxItemCount) {
         mCacheDir = cacheDir;
         maxCacheByteSize = maxByteSize;
+        maxCacheItemSize = maxItemCount;
+        mJournalFile = new File(cacheDir, JOURNAL_FILE);
+        mJournalFileTmp = new File(cacheDir, JOURNAL_FILE_TMP);
+    }
+
+    /**
+     * Restores the index from the journal, or from the cache files themselves
+     * when there is no usable journal yet, and opens the journal for appending.
+     *
+     * @throws IOException
+     */
+    private void initialize() throws IOException {
+        synchronized (mLinkedHashMap) {
+            moveFlatFilesToShards();
+            boolean replayed = false;
+            if (mJournalFile.exists()) {
+                try {
+                    readJournal();
+                    replayed = true;
+                } catch (final IOException e) {
+                    Log.e(TAG, "Journal is corrupt, rebuilding index: " + e.getMessage());
+                    mLinkedHashMap.clear();
+                    cacheByteSize = 0;
+                }
+            }
+            if (!replayed) {
+                readCacheDirectory();
+            }
+            cacheSize = mLinkedHashMap.size();
+
+            if (replayed && !journalRebuildRequired()) {
+                mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFile, true),
+                        "US-ASCII"), IO_BUFFER_SIZE);
+            } else {
+                rebuildJournal();
+            }
+            trimToSize(maxCacheItemSize, maxCacheByteSize);
+        }
+    }
+
+    /**
+     * Replays the journal into the index. The last line may be truncated if
+     * the process died while appending; it is ignored.
+     *
+     * @throws IOException
+     */
+    private void readJournal() throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile),
+                "US-ASCII"), IO_BUFFER_SIZE);
+        try {
+            final String magic = reader.readLine();
+            final String version = reader.readLine();
+            final String blank = reader.readLine();
+            if (!JOURNAL_MAGIC.equals(magic) || !JOURNAL_VERSION.equals(version) || !"".equals(blank)) {
+                throw new IOException("unexpected journal header: [" + magic + ", " + version + ", " + blank + "]");
+            }
+
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readJournalLine(line);
+                lineCount++;
+            }
+            mRedundantOpCount = lineCount - mLinkedHashMap.size();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readJournalLine(String line) {
+        final String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            return;
+        }
+        final String op = parts[0];
+        final String key = parts[1];
+        if (PUT.equals(op) && parts.length == 3) {
+            final long size;
+            try {
+                size = Long.parseLong(parts[2]);
+            } catch (final NumberFormatException e) {
+                return;
+            }
+            final CacheEntry previous = mLinkedHashMap.put(key, new CacheEntry(key, size));
+            if (previous != null) {
+                cacheByteSize -= previous.size;
+            }
+            cacheByteSize += size;
+        } else if (READ.equals(op)) {
+            // アクセス順を更新するだけ
+            mLinkedHashMap.get(key);
+        } else if (REMOVE.equals(op)) {
+            final CacheEntry previous = mLinkedHashMap.remove(key);
+            if (previous != null) {
+                cacheByteSize -= previous.size;
+            }
+        } else if (META.equals(op) && (parts.length == 5 || parts.length == 6)) {
+            final CacheEntry entry = mLinkedHashMap.get(key);
+            if (entry == null) {
+                return;
+            }
+            try {
+                final String etag = NO_VALUE.equals(parts[2]) ? null : URLDecoder.decode(parts[2], "UTF-8");
+                // 受信時刻のない行は以前の版が書いたもの
+                final long responseTime = parts.length == 6 ? Long.parseLong(parts[5]) : 0;
+                final Validators validators = new Validators(etag, Long.parseLong(parts[3]),
+                        Long.parseLong(parts[4]), responseTime);
+                mLinkedHashMap.put(key, new CacheEntry(key, entry.size, validators));
+            } catch (final NumberFormatException e) {
+                // 壊れた行は無視する
+            } catch (final UnsupportedEncodingException e) {
+                // UTF-8 は必ずある
+            }
+        }
+    }
+
+    private static String createMetaLine(String key, Validators validators) throws UnsupportedEncodingException {
+        final String etag = validators.etag != null ? URLEncoder.encode(validators.etag, "UTF-8") : NO_VALUE;
+        return META + ' ' + key + ' ' + etag + ' ' + validators.lastModified + ' ' + validators.expires + ' '
+                + validators.responseTime + '\n';
+    }
+
+    /**
+     * Moves cache files written by versions that kept every file directly in
+     * the cache directory into their subdirectory, and deletes leftover
+     * temporary files of editors that never finished.
+     */
+    private void moveFlatFilesToShards() {
+        final File[] files = mCacheDir.listFiles(cacheFileFilter);
+        if (files == null) {
+            return;
+        }
+        final int prefixLength = CACHE_FILENAME_PREFIX.length();
+        for (int i = 0; i < files.length; i++) {
+            final File file = files[i];
+            if (!file.isFile()) {
+                continue;
+            }
+            if (file.getName().endsWith(TEMP_FILENAME_SUFFIX)) {
+                // 書き込み途中で終了した Editor の一時ファイル
+                file.delete();
+                continue;
+            }
+            final File target = new File(createFilePath(mCacheDir, file.getName().substring(prefixLength)));
+            target.getParentFile().mkdirs();
+            if (!file.renameTo(target)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Lists the cache files of every subdirectory.
+     */
+    private File[] listCacheFiles() {
+        final File[] shards = mCacheDir.listFiles();
+        if (shards == null) {
+            return new File[0];
+        }
+        final ArrayList<File> files = new ArrayList<File>();
+        for (int i = 0; i < shards.length; i++) {
+            if (!shards[i].isDirectory()) {
+                continue;
+            }
+            final File[] shardFiles = shards[i].listFiles(cacheFileFilter);
+            if (shardFiles != null) {
+                files.addAll(Arrays.asList(shardFiles));
+            }
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    /**
+     * Builds the index from the cache files when no journal is available,
+     * oldest file first so that the eviction order is approximated by the
+     * modification time.
+     */
+    private void readCacheDirectory() {
+        final File[] files = listCacheFiles();
+        final long[] lastModified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final long l = lastModified[lhs];
+                final long r = lastModified[rhs];
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        final int prefixLength = CACHE_FILENAME_PREFIX.length();
+        for (int i = 0; i < order.length; i++) {
+            final File file = files[order[i]];
+            if (file.getName().endsWith(TEMP_FILENAME_SUFFIX)) {
+                // 書き込み途中で終了した Editor の一時ファイル
+                file.delete();
+                continue;
+            }
+            final String key = file.getName().substring(prefixLength);
+            final long size = file.length();
+            mLinkedHashMap.put(key, new CacheEntry(key, size));
+            cacheByteSize += size;
+        }
+    }
+
+    /**
+     * Writes a compact journal holding only the live entries, in LRU order,
+     * and swaps it in place of the current one. Must be called while holding
+     * the index lock.
+     *
+     * @throws IOException
+     */
+    private void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+            mJournalWriter = null;
+        }
+
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFileTmp),
+                "US-ASCII"), IO_BUFFER_SIZE);
+        try {
+            writer.write(JOURNAL_MAGIC);
+            writer.write('\n');
+            writer.write(JOURNAL_VERSION);
+            writer.write('\n');
+            writer.write('\n');
+            for (CacheEntry entry : mLinkedHashMap.values()) {
+                writer.write(PUT + ' ' + entry.key + ' ' + entry.size + '\n');
+                if (entry.validators != null) {
+                    writer.write(createMetaLine(entry.key, entry.validators));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!mJournalFileTmp.renameTo(mJournalFile)) {
+            throw new IOException("failed to rename " + mJournalFileTmp + " to " + mJournalFile);
+        }
+        mRedundantOpCount = 0;
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFile, true),
+                "US-ASCII"), IO_BUFFER_SIZE);
+    }
+
+    /**
+     * Appends a line to the journal. PUT and REMOVE are flushed immediately;
+     * READ lines only update the LRU order, so losing a few of them on a
+     * crash is harmless and they are left in the buffer.
+     */
+    private void appendJournal(String op, String key, long size) {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            if (PUT.equals(op)) {
+                mJournalWriter.write(op + ' ' + key + ' ' + size + '\n');
+                mJournalWriter.flush();
+            } else if (REMOVE.equals(op)) {
+                mJournalWriter.write(op + ' ' + key + '\n');
+                mJournalWriter.flush();
+            } else {
+                mJournalWriter.write(op + ' ' + key + '\n');
+                mRedundantOpCount++;
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in appendJournal: " + e.getMessage());
+        }
+
+        if (journalRebuildRequired()) {
+            mExecutor.execute(mCompactJournalRunnable);
+        }
+    }
+
+    /**
+     * We only rebuild the journal when it will halve the size of the journal
+     * and eliminate at least 2000 ops.
+     */
+    private boolean journalRebuildRequired() {
+        return mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOpCount >= mLinkedHashMap.size();
     }
 
     /**
@@ -134,7 +741,10 @@ public abstract class DiskLruCache {
     }
 
     /**
-     * Add a bitmap to the disk cache.
+     * Add a bitmap to the disk cache. The bitmap is re-encoded with the format
+     * set by {@link DiskLruCache#setCompressParams(CompressFormat, int)}; when
+     * the original encoded bytes are available, write them through
+     * {@link DiskLruCache#edit(String)} instead.
      * 
      * @param key
      *            A unique identifier for the bitmap.
@@ -142,85 +752,749 @@ public abstract class DiskLruCache {
      *            The bitmap to store.
      */
     public void put(String key, Bitmap data) {
+        if (mLinkedHashMap.get(key) != null) {
+            return;
+        }
+        Editor editor = null;
+        final long start = ImageLoadMetrics.startTimer();
+        try {
+            editor = edit(key);
+            if (writeBitmapToStream(data, editor.newOutputStream())) {
+                editor.commit();
+                ImageLoadMetrics.stopTimer(ImageLoadMetrics.STAGE_ENCODE, start);
+            } else {
+                editor.abort();
+            }
+        } catch (final FileNotFoundException e) {
+            Log.e(TAG, "Error in put: " + e.getMessage());
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in put: " + e.getMessage());
+        } finally {
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
+        }
+    }
+
+    /**
+     * Starts writing a new entry for the given key. The bytes are written to a
+     * temporary file and only become visible to readers once
+     * {@link Editor#commit()} is called, so a partially written entry is never
+     * served. With the slab store enabled, the bytes are held in memory until
+     * they outgrow a slab entry, so a small entry is written to disk only
+     * once.
+     * 
+     * @param key
+     *            A unique identifier for the entry.
+     * @return An editor for the entry.
+     * @throws IOException
+     */
+    public Editor edit(String key) throws IOException {
         synchronized (mLinkedHashMap) {
-            if (mLinkedHashMap.get(key) == null) {
-                try {
-                    final String file = createFilePath(mCacheDir, key);
-                    if (writeBitmapToFile(data, file)) {
-                        put(key, file);
-                        flushCache();
+            if (mSlabStore != null) {
+                return new Editor(key, null);
+            }
+        }
+        return new Editor(key, createTempFile(key));
+    }
+
+    private File createTempFile(String key) throws IOException {
+        return File.createTempFile(CACHE_FILENAME_PREFIX + key, TEMP_FILENAME_SUFFIX, mCacheDir);
+    }
+
+    /**
+     * Edits the bytes of a cache entry.
+     */
+    public final class Editor {
+        private final String key;
+        // スラブに入れるかもしれない間は null
+        private File tempFile;
+        private OutputStream out;
+        private SlabOutputStream slabOut;
+        private Validators validators;
+        private boolean done;
+
+        private Editor(String key, File tempFile) {
+            this.key = key;
+            this.tempFile = tempFile;
+        }
+
+        /**
+         * Returns an unbuffered stream to write the entry bytes to. The stream
+         * is closed by {@link Editor#commit()} or {@link Editor#abort()}.
+         * 
+         * @return The output stream
+         * @throws FileNotFoundException
+         */
+        public OutputStream newOutputStream() throws FileNotFoundException {
+            if (out == null) {
+                if (tempFile == null) {
+                    slabOut = new SlabOutputStream();
+                    out = slabOut;
+                } else {
+                    out = new FileOutputStream(tempFile);
+                }
+            }
+            return out;
+        }
+
+        /**
+         * Sets the validators stored with the entry when it is committed.
+         * 
+         * @param validators
+         *            the validators, or null if there are none
+         */
+        public void setValidators(Validators validators) {
+            this.validators = validators;
+        }
+
+        /**
+         * Publishes the written bytes as the entry for this key, replacing any
+         * previous entry.
+         * 
+         * @return The cache file holding the entry, or null if the entry was
+         *         packed into a slab
+         * @throws IOException
+         */
+        public File commit() throws IOException {
+            return commitSource().file;
+        }
+
+        /**
+         * Publishes the written bytes like {@link #commit()}.
+         * 
+         * @return The stored bytes of the entry
+         * @throws IOException
+         */
+        public Source commitSource() throws IOException {
+            closeStream();
+            done = true;
+            final File file = new File(createFilePath(mCacheDir, key));
+            if (tempFile == null && slabOut != null && slabOut.buffer.size() > 0) {
+                final EntryBuffer buffer = slabOut.buffer;
+                synchronized (mLinkedHashMap) {
+                    if (mSlabStore != null) {
+                        try {
+                            mSlabStore.put(key, buffer.array(), buffer.size());
+                            // 以前の大きなエントリが残っていれば消す
+                            file.delete();
+                            return publish(new Source(null, mSlabStore.get(key)), buffer.size());
+                        } catch (final IOException e) {
+                            Log.e(TAG, "Error in commit: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+            if (tempFile == null) {
+                // スラブに入れられなかった
+                tempFile = createTempFile(key);
+                if (slabOut != null) {
+                    final OutputStream stream = new FileOutputStream(tempFile);
+                    try {
+                        slabOut.buffer.writeTo(stream);
+                    } finally {
+                        stream.close();
                     }
-                } catch (final FileNotFoundException e) {
-                    Log.e(TAG, "Error in put: " + e.getMessage());
-                } catch (final IOException e) {
-                    Log.e(TAG, "Error in put: " + e.getMessage());
                 }
             }
+            synchronized (mLinkedHashMap) {
+                final long size = tempFile.length();
+                file.getParentFile().mkdirs();
+                if (!tempFile.renameTo(file)) {
+                    tempFile.delete();
+                    throw new IOException("failed to rename " + tempFile + " to " + file);
+                }
+                if (mSlabStore != null) {
+                    mSlabStore.remove(key);
+                }
+                return publish(new Source(file, null), size);
+            }
+        }
+
+        /**
+         * Indexes the committed entry. Must be called while holding the index
+         * lock.
+         */
+        private Source publish(Source source, long size) {
+            put(key, size);
+            if (validators != null) {
+                putValidators(key, validators);
+            }
+            scheduleTrimIfNeeded();
+            return source;
+        }
+
+        /**
+         * Discards the written bytes.
+         */
+        public void abort() {
+            try {
+                closeStream();
+            } catch (final IOException e) {
+                // ignore
+            }
+            done = true;
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+
+        /**
+         * Calls {@link Editor#abort()} if neither commit nor abort has been
+         * called yet. Meant for finally blocks.
+         */
+        public void abortUnlessCommitted() {
+            if (!done) {
+                abort();
+            }
+        }
+
+        private void closeStream() throws IOException {
+            if (out != null) {
+                final OutputStream stream = out;
+                out = null;
+                stream.close();
+            }
+        }
+
+        /**
+         * Holds the bytes in memory while they fit in a slab and moves them to
+         * the temporary file once they do not.
+         */
+        private final class SlabOutputStream extends OutputStream {
+            private final EntryBuffer buffer = new EntryBuffer();
+            private OutputStream file;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (file == null && buffer.size() < SlabStore.MAX_ENTRY_SIZE) {
+                    buffer.write(b);
+                } else {
+                    spill().write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (file == null && buffer.size() + len <= SlabStore.MAX_ENTRY_SIZE) {
+                    buffer.write(b, off, len);
+                } else {
+                    spill().write(b, off, len);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (file != null) {
+                    file.close();
+                }
+            }
+
+            private OutputStream spill() throws IOException {
+                if (file == null) {
+                    tempFile = createTempFile(key);
+                    file = new FileOutputStream(tempFile);
+                    buffer.writeTo(file);
+                    buffer.reset();
+                }
+                return file;
+            }
+        }
+    }
+
+    /**
+     * A byte buffer whose array can be read without a copy.
+     */
+    private static final class EntryBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
         }
     }
 
-    private void put(String key, String file) {
-        mLinkedHashMap.put(key, file);
+    private void put(String key, long size) {
+        final CacheEntry previous = mLinkedHashMap.put(key, new CacheEntry(key, size));
+        if (previous != null) {
+            cacheByteSize -= previous.size;
+            mRedundantOpCount++;
+        }
         cacheSize = mLinkedHashMap.size();
-        cacheByteSize += new File(file).length();
+        cacheByteSize += size;
+        appendJournal(PUT, key, size);
+
+        if (mTinyLfu != null) {
+            mTinyLfu.onPut(key, size);
+        }
+    }
+
+    private void putValidators(String key, Validators validators) {
+        final CacheEntry entry = mLinkedHashMap.get(key);
+        if (entry == null) {
+            return;
+        }
+        if (entry.validators != null) {
+            mRedundantOpCount++;
+        }
+        mLinkedHashMap.put(key, new CacheEntry(key, entry.size, validators));
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.write(createMetaLine(key, validators));
+            mJournalWriter.flush();
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in putValidators: " + e.getMessage());
+        }
+    }
+
+    private void remove(String key) {
+        final CacheEntry previous = mLinkedHashMap.remove(key);
+        if (previous != null) {
+            cacheSize = mLinkedHashMap.size();
+            cacheByteSize -= previous.size;
+            mRedundantOpCount += 2;
+            appendJournal(REMOVE, key, 0);
+        }
+        if (mTinyLfu != null) {
+            mTinyLfu.onRemove(key);
+        }
+        if (mSlabStore != null && mSlabStore.contains(key)) {
+            mSlabStore.remove(key);
+            if (!mCompactionScheduled && mSlabStore.needsCompaction()) {
+                mCompactionScheduled = true;
+                mExecutor.execute(mCompactSlabsRunnable);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes the cache takes on disk: the entries and the slab
+     *         space not reclaimed yet. Must be called while holding the index
+     *         lock.
+     */
+    private long diskByteSize() {
+        return mSlabStore != null ? cacheByteSize + mSlabStore.deadBytes() : cacheByteSize;
     }
 
     /**
-     * Flush the cache, removing oldest entries if the total size is over the
-     * specified cache size. Note that this isn't keeping track of stale files
-     * in the cache directory that aren't in the HashMap. If the images and keys
-     * in the disk cache change often then they probably won't ever be removed.
+     * Trims the cache on the background thread if it is over one of its
+     * limits. Must be called while holding the index lock.
      */
-    private void flushCache() {
-        Entry<String, String> eldestEntry;
+    private void scheduleTrimIfNeeded() {
+        if (mTrimScheduled || (cacheSize <= maxCacheItemSize && diskByteSize() <= maxCacheByteSize)) {
+            return;
+        }
+        mTrimScheduled = true;
+        mExecutor.execute(mTrimRunnable);
+    }
+
+    /**
+     * Removes entries chosen by the eviction policy until the cache holds at
+     * most the given number of entries and bytes. Must be called while holding
+     * the index lock.
+     * 
+     * @param maxItems
+     * @param maxBytes
+     */
+    private void trimToSize(int maxItems, long maxBytes) {
+        CacheEntry eldestEntry;
         File eldestFile;
         long eldestFileSize;
-        int count = 0;
 
-        while (count < MAX_REMOVALS && (cacheSize > maxCacheItemSize || cacheByteSize > maxCacheByteSize)) {
-            eldestEntry = mLinkedHashMap.entrySet().iterator().next();
-            eldestFile = new File(eldestEntry.getValue());
-            eldestFileSize = eldestFile.length();
-            mLinkedHashMap.remove(eldestEntry.getKey());
+        while (!mLinkedHashMap.isEmpty() && (cacheSize > maxItems || diskByteSize() > maxBytes)) {
+            eldestEntry = selectVictim(maxItems, maxBytes);
+            eldestFile = new File(createFilePath(mCacheDir, eldestEntry.key));
+            eldestFileSize = eldestEntry.size;
+            remove(eldestEntry.key);
             eldestFile.delete();
-            cacheSize = mLinkedHashMap.size();
-            cacheByteSize -= eldestFileSize;
-            count++;
+            if (mSlabStore != null && mSlabStore.needsCompaction()) {
+                // 消したレコードは詰め直すまでディスクを空けない
+                mSlabStore.compact();
+            }
+            ImageLoadMetrics.count(ImageLoadMetrics.DISK_EVICTION);
+            ImageLoadMetrics.count(ImageLoadMetrics.DISK_EVICTION_BYTES, eldestFileSize);
             if (BuildConfig.DEBUG) {
-                Log.d(TAG, "flushCache - Removed cache file, " + eldestFile + ", " + eldestFileSize);
+                Log.d(TAG, "trimToSize - Removed cache file, " + eldestFile + ", " + eldestFileSize);
+            }
+        }
+    }
+
+    /**
+     * Deletes, on a low priority background thread, the files in the cache
+     * directory that the index does not account for: temporary files of
+     * editors that were never finished and cache files that are not indexed,
+     * e.g. because the journal line recording them was lost. Index entries
+     * whose file is missing or has a different size are dropped. What was
+     * reclaimed is counted in {@link ImageLoadMetrics#DISK_SWEPT_FILES} and
+     * {@link ImageLoadMetrics#DISK_SWEPT_BYTES}.
+     */
+    public void scheduleMaintenance() {
+        mExecutor.execute(mMaintenanceRunnable);
+    }
+
+    private void runMaintenance() {
+        int sweptFiles = 0;
+        long sweptBytes = 0;
+
+        synchronized (mLinkedHashMap) {
+            if (mClosed) {
+                return;
+            }
+            if (mSlabStore == null) {
+                // スラブを使わなくなった後に残ったもの
+                SlabStore.deleteAll(mCacheDir);
+            }
+        }
+
+        // 書き込み途中で捨てられた一時ファイル
+        final long staleBefore = System.currentTimeMillis() - STALE_TEMP_FILE_AGE_MILLIS;
+        final File[] rootFiles = mCacheDir.listFiles(cacheFileFilter);
+        if (rootFiles != null) {
+            for (int i = 0; i < rootFiles.length; i++) {
+                final File file = rootFiles[i];
+                if (file.isFile() && file.getName().endsWith(TEMP_FILENAME_SUFFIX)
+                        && file.lastModified() < staleBefore) {
+                    final long length = file.length();
+                    if (file.delete()) {
+                        sweptFiles++;
+                        sweptBytes += length;
+                    }
+                }
+            }
+        }
+
+        // インデックスにないファイル。コミットはリネームと登録を同じロックの中で行う
+        final File[] files = listCacheFiles();
+        final int prefixLength = CACHE_FILENAME_PREFIX.length();
+        for (int i = 0; i < files.length; i++) {
+            final File file = files[i];
+            final String key = file.getName().substring(prefixLength);
+            synchronized (mLinkedHashMap) {
+                if (mClosed) {
+                    return;
+                }
+                if (mLinkedHashMap.containsKey(key)) {
+                    continue;
+                }
+                final long length = file.length();
+                if (file.delete()) {
+                    sweptFiles++;
+                    sweptBytes += length;
+                }
+            }
+        }
+
+        // ファイルがない、または大きさの違うエントリ
+        final ArrayList<CacheEntry> entries;
+        synchronized (mLinkedHashMap) {
+            entries = new ArrayList<CacheEntry>(mLinkedHashMap.values());
+        }
+        final HashSet<CacheEntry> broken = new HashSet<CacheEntry>();
+        for (int i = 0; i < entries.size(); i++) {
+            final CacheEntry entry = entries.get(i);
+            final File file = new File(createFilePath(mCacheDir, entry.key));
+            if (file.length() != entry.size || !file.exists()) {
+                broken.add(entry);
+            }
+        }
+        int droppedEntries = 0;
+        if (!broken.isEmpty()) {
+            synchronized (mLinkedHashMap) {
+                if (mClosed) {
+                    return;
+                }
+                // 調べている間に書き直されたエントリは別物なので残す。get は LRU 順を変えるので使わない
+                final ArrayList<CacheEntry> stillBroken = new ArrayList<CacheEntry>();
+                for (final CacheEntry entry : mLinkedHashMap.values()) {
+                    if (broken.contains(entry) && (mSlabStore == null || !mSlabStore.contains(entry.key))) {
+                        stillBroken.add(entry);
+                    }
+                }
+                for (int i = 0; i < stillBroken.size(); i++) {
+                    final String key = stillBroken.get(i).key;
+                    final File file = new File(createFilePath(mCacheDir, key));
+                    final long length = file.length();
+                    remove(key);
+                    if (file.delete()) {
+                        sweptFiles++;
+                        sweptBytes += length;
+                    }
+                    droppedEntries++;
+                }
+            }
+        }
+
+        ImageLoadMetrics.count(ImageLoadMetrics.DISK_SWEPT_FILES, sweptFiles);
+        ImageLoadMetrics.count(ImageLoadMetrics.DISK_SWEPT_BYTES, sweptBytes);
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "runMaintenance - Swept " + sweptFiles + " files, " + sweptBytes + " bytes, dropped "
+                    + droppedEntries + " entries");
+        }
+    }
+
+    /**
+     * Chooses the entry to evict next according to the eviction policy, while
+     * the cache holds more than the given number of entries or bytes.
+     */
+    private CacheEntry selectVictim(int maxItems, long maxBytes) {
+        if (mTinyLfu != null) {
+            final String key = mTinyLfu.selectVictim(maxItems, maxBytes);
+            final CacheEntry entry = key != null ? mLinkedHashMap.get(key) : null;
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return mLinkedHashMap.values().iterator().next();
+    }
+
+    /**
+     * Sets how entries are chosen for eviction, {@link #EVICTION_LRU} by
+     * default.
+     * 
+     * @param evictionPolicy
+     *            {@link #EVICTION_LRU} or {@link #EVICTION_TINY_LFU}
+     */
+    public void setEvictionPolicy(int evictionPolicy) {
+        synchronized (mLinkedHashMap) {
+            if (evictionPolicy == mEvictionPolicy) {
+                // 作り直すと頻度の記録が消える
+                return;
+            }
+            mEvictionPolicy = evictionPolicy;
+            mTinyLfu = null;
+            if (evictionPolicy == EVICTION_TINY_LFU) {
+                mTinyLfu = new TinyLfuPolicy(maxCacheItemSize, maxCacheByteSize);
+                // すでにあるエントリは古い順に本体に入れる
+                for (final CacheEntry entry : mLinkedHashMap.values()) {
+                    mTinyLfu.onLoad(entry.key, entry.size);
+                }
             }
         }
     }
 
+    public int getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
+    /**
+     * Packs entries of up to 32KB into a few large slab files instead of
+     * writing a file for each, which saves the cost of opening a file per read
+     * and the block rounding of many small files. Entries already in slabs are
+     * dropped when the slabs are disabled. Off by default.
+     * 
+     * @param enabled
+     */
+    public void setSlabStoreEnabled(boolean enabled) {
+        synchronized (mLinkedHashMap) {
+            if (enabled == (mSlabStore != null)) {
+                return;
+            }
+            if (enabled) {
+                try {
+                    mSlabStore = SlabStore.open(mCacheDir);
+                    // ジャーナルにないレコードは削除済み
+                    mSlabStore.retainAll(mLinkedHashMap.keySet());
+                    scheduleTrimIfNeeded();
+                } catch (final IOException e) {
+                    Log.e(TAG, "Error in setSlabStoreEnabled: " + e.getMessage());
+                }
+            } else {
+                final String[] keys = mSlabStore.keySet().toArray(new String[0]);
+                mSlabStore = null;
+                for (int i = 0; i < keys.length; i++) {
+                    remove(keys[i]);
+                }
+                SlabStore.deleteAll(mCacheDir);
+            }
+        }
+    }
+
+    public boolean isSlabStoreEnabled() {
+        return mSlabStore != null;
+    }
+
     /**
      * Get an image from the disk cache.
      * 
      * @param key
      *            The unique identifier for the bitmap
      * @return The bitmap or null if not found
+     * @deprecated Entries hold the original downloads, which this decodes at
+     *             full resolution. Use
+     *             {@link #get(String, int, int, int)} instead.
      */
+    @Deprecated
     public Bitmap get(String key) {
+        return get(key, ImageCacheParams.DECODE_CONFIG_ARGB_8888);
+    }
+
+    /**
+     * Get an image from the disk cache.
+     * 
+     * @param key
+     *            The unique identifier for the bitmap
+     * @param decodeConfig
+     *            one of the ImageCacheParams.DECODE_CONFIG_* policies
+     * @return The bitmap or null if not found
+     * @deprecated Entries hold the original downloads, which this decodes at
+     *             full resolution. Use
+     *             {@link #get(String, int, int, int)} instead.
+     */
+    @Deprecated
+    public Bitmap get(String key, int decodeConfig) {
+        final Source source = getSource(key);
+        if (source == null) {
+            return null;
+        }
+        // デコードはロックの外で行う
+        final Bitmap bitmap = source.file != null ? BitmapDecoder.decodeBitmapFromFile(source.file.getPath(),
+                decodeConfig) : BitmapDecoder.decodeBitmapFromByteArray(source.bytes, decodeConfig);
+        if (bitmap == null) {
+            // ファイルが外部から削除された、もしくは壊れている
+            removeEntry(key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Get an image from the disk cache, sampled and scaled down so that it
+     * just covers the requested size.
+     * 
+     * @param key
+     *            The unique identifier for the bitmap
+     * @param reqWidth
+     * @param reqHeight
+     * @param decodeConfig
+     *            one of the ImageCacheParams.DECODE_CONFIG_* policies
+     * @return The bitmap or null if not found
+     */
+    public Bitmap get(String key, int reqWidth, int reqHeight, int decodeConfig) {
+        return decode(key, getSource(key), reqWidth, reqHeight, null, decodeConfig);
+    }
+
+    /**
+     * Decodes the bytes of an entry read with {@link #getSource(String)},
+     * dropping the entry if they can not be decoded.
+     */
+    Bitmap decode(String key, Source source, int reqWidth, int reqHeight, BitmapPool bitmapPool,
+            int decodeConfig) {
+        if (source == null) {
+            return null;
+        }
+        // デコードはロックの外で行う
+        final Bitmap bitmap = source.file != null ? BitmapDecoder.decodeSampledBitmapFromFile(
+                source.file.getPath(), reqWidth, reqHeight, bitmapPool, decodeConfig) : BitmapDecoder
+                .decodeSampledBitmapFromByteArray(source.bytes, reqWidth, reqHeight, bitmapPool, decodeConfig);
+        if (bitmap == null) {
+            // ファイルが外部から削除された、もしくは壊れている
+            removeEntry(key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Get the file holding the bytes of a cache entry.
+     * 
+     * @param key
+     *            The unique identifier for the entry
+     * @return The cache file or null if not found or if the entry is held in a
+     *         slab
+     */
+    public File getFile(String key) {
+        final Source source = getSource(key);
+        return source != null ? source.file : null;
+    }
+
+    /**
+     * Get the stored bytes of a cache entry.
+     * 
+     * @param key
+     *            The unique identifier for the entry
+     * @return The source or null if not found
+     */
+    public Source getSource(String key) {
         synchronized (mLinkedHashMap) {
-            final String file = mLinkedHashMap.get(key);
-            if (file != null) {
+            if (mTinyLfu != null) {
+                // ミスも数えるので、よく要求される画像は入ったときから頻度が高い
+                mTinyLfu.recordAccess(key);
+            }
+            if (mLinkedHashMap.get(key) != null) {
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "Disk cache hit");
                 }
-                return BitmapFactory.decodeFile(file);
-            } else {
-                final String existingFile = createFilePath(mCacheDir, key);
-                if (new File(existingFile).exists()) {
-                    put(key, existingFile);
-                    if (BuildConfig.DEBUG) {
-                        Log.d(TAG, "Disk cache hit (existing file)");
+                appendJournal(READ, key, 0);
+                ImageLoadMetrics.count(ImageLoadMetrics.DISK_HIT);
+                if (mSlabStore != null) {
+                    final byte[] bytes = mSlabStore.get(key);
+                    if (bytes != null) {
+                        return new Source(null, bytes);
                     }
-                    return BitmapFactory.decodeFile(existingFile);
                 }
+                return new Source(new File(createFilePath(mCacheDir, key)), null);
             }
+            ImageLoadMetrics.count(ImageLoadMetrics.DISK_MISS);
             return null;
         }
     }
 
+    /**
+     * Records a use of an entry whose bytes were served from elsewhere, e.g.
+     * a memory copy, so that it ages like an entry read with
+     * {@link #getSource(String)}. Nothing is read from disk.
+     * 
+     * @param key
+     *            The unique identifier for the entry
+     */
+    public void touch(String key) {
+        synchronized (mLinkedHashMap) {
+            if (mTinyLfu != null) {
+                mTinyLfu.recordAccess(key);
+            }
+            // アクセス順の LinkedHashMap なので get で新しい方へ移る
+            if (mLinkedHashMap.get(key) != null) {
+                appendJournal(READ, key, 0);
+            }
+        }
+    }
+
+    /**
+     * Get the validators stored with a cache entry.
+     * 
+     * @param key
+     *            The unique identifier for the entry
+     * @return The validators, or null if the entry is missing or has none
+     */
+    public Validators getValidators(String key) {
+        final CacheEntry entry = mLinkedHashMap.get(key);
+        return entry != null ? entry.validators : null;
+    }
+
+    /**
+     * Replaces the validators of an entry, e.g. after the server confirmed
+     * that the entry is still valid.
+     * 
+     * @param key
+     *            The unique identifier for the entry
+     * @param validators
+     */
+    public void updateValidators(String key, Validators validators) {
+        synchronized (mLinkedHashMap) {
+            putValidators(key, validators);
+        }
+    }
+
+    /**
+     * Removes an entry and its file from the cache.
+     * 
+     * @param key
+     *            The unique identifier for the entry
+     */
+    public void removeEntry(String key) {
+        synchronized (mLinkedHashMap) {
+            remove(key);
+            new File(createFilePath(mCacheDir, key)).delete();
+        }
+    }
+
     /**
      * Checks if a specific key exist in the cache.
      * 
@@ -229,26 +1503,31 @@ public abstract class DiskLruCache {
      * @return true if found, false otherwise
      */
     public boolean containsKey(String key) {
-        // See if the key is in our HashMap
-        if (mLinkedHashMap.containsKey(key)) {
-            return true;
-        }
-
-        // Now check if there's an actual file that exists based on the key
-        final String existingFile = createFilePath(mCacheDir, key);
-        if (new File(existingFile).exists()) {
-            // File found, add it to the HashMap for future use
-            put(key, existingFile);
-            return true;
-        }
-        return false;
+        // The journal has already been replayed, so the index is authoritative
+        return mLinkedHashMap.containsKey(key);
     }
 
     /**
      * Removes all disk cache entries from this instance cache dir
      */
     public void clearCache() {
-        DiskLruCache.clearCache(mCacheDir);
+        synchronized (mLinkedHashMap) {
+            if (mSlabStore != null) {
+                mSlabStore.clear();
+            }
+            DiskLruCache.clearCache(mCacheDir);
+            mLinkedHashMap.clear();
+            if (mTinyLfu != null) {
+                mTinyLfu.clear();
+            }
+            cacheSize = 0;
+            cacheByteSize = 0;
+            try {
+                rebuildJournal();
+            } catch (final IOException e) {
+                Log.e(TAG, "Error in clearCache: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -263,7 +1542,16 @@ public abstract class DiskLruCache {
      */
     public static void clearCache(Context context, String uniqueName) {
         File cacheDir = getDiskCacheDir(context, uniqueName);
-        clearCache(cacheDir);
+        final DiskLruCache open;
+        synchronized (sOpenCaches) {
+            open = sOpenCaches.get(getCanonicalPath(cacheDir));
+        }
+        if (open != null) {
+            // 開いているインスタンスのインデックスも空にする
+            open.clearCache();
+        } else {
+            clearCache(cacheDir);
+        }
     }
 
     /**
@@ -275,10 +1563,26 @@ public abstract class DiskLruCache {
      *            The directory to remove the cache files from
      */
     private static void clearCache(File cacheDir) {
-        final File[] files = cacheDir.listFiles(cacheFileFilter);
-        for (int i = 0; i < files.length; i++) {
-            files[i].delete();
+        final File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                if (files[i].isDirectory()) {
+                    final File[] shardFiles = files[i].listFiles(cacheFileFilter);
+                    if (shardFiles != null) {
+                        for (int j = 0; j < shardFiles.length; j++) {
+                            shardFiles[j].delete();
+                        }
+                    }
+                    // 他のファイルが残っていれば消えない
+                    files[i].delete();
+                } else if (cacheFileFilter.accept(cacheDir, files[i].getName())) {
+                    files[i].delete();
+                }
+            }
         }
+        SlabStore.deleteAll(cacheDir);
+        new File(cacheDir, JOURNAL_FILE).delete();
+        new File(cacheDir, JOURNAL_FILE_TMP).delete();
     }
 
     /**
@@ -329,14 +1633,16 @@ public abstract class DiskLruCache {
 
     /**
      * Creates a constant cache file path given a target cache directory and an
-     * image key.
+     * image key. The file is placed in the subdirectory named after the first
+     * characters of the key.
      * 
      * @param cacheDir
      * @param key
      * @return
      */
     public static String createFilePath(File cacheDir, String key) {
-        return cacheDir.getAbsolutePath() + File.separator + CACHE_FILENAME_PREFIX + key;
+        final String shard = key.length() > SHARD_PREFIX_LENGTH ? key.substring(0, SHARD_PREFIX_LENGTH) : key;
+        return cacheDir.getAbsolutePath() + File.separator + shard + File.separator + CACHE_FILENAME_PREFIX + key;
     }
 
     /**
@@ -352,30 +1658,24 @@ public abstract class DiskLruCache {
     }
 
     /**
-     * Writes a bitmap to a file. Call
+     * Writes a bitmap to a stream. Call
      * {@link DiskLruCache#setCompressParams(CompressFormat, int)} first to set
      * the target bitmap compression and format.
      * 
      * @param bitmap
-     * @param file
+     * @param stream
      * @return
      */
-    private boolean writeBitmapToFile(Bitmap bitmap, String file) throws IOException, FileNotFoundException {
-
-        OutputStream out = null;
-        try {
-            out = new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE);
-            return bitmap.compress(mCompressFormat, mCompressQuality, out);
-        } finally {
-            if (out != null) {
-                out.close();
-            }
-        }
+    private boolean writeBitmapToStream(Bitmap bitmap, OutputStream stream) throws IOException {
+        final OutputStream out = new BufferedOutputStream(stream, IO_BUFFER_SIZE);
+        final boolean result = bitmap.compress(mCompressFormat, mCompressQuality, out);
+        out.flush();
+        return result;
     }
 
     public static class DiskLruCachePostEclair extends DiskLruCache {
-        public DiskLruCachePostEclair(File cacheDir, long maxByteSize) {
-            super(cacheDir, maxByteSize);
+        public DiskLruCachePostEclair(File cacheDir, long maxByteSize, int maxItemCount) {
+            super(cacheDir, maxByteSize, maxItemCount);
         }
 
         /**
@@ -432,8 +1732,8 @@ public abstract class DiskLruCache {
      * Android 1.6 以前向け
      */
     public static class DiskLruCachePreEclair extends DiskLruCache {
-        public DiskLruCachePreEclair(File cacheDir, long maxByteSize) {
-            super(cacheDir, maxByteSize);
+        public DiskLruCachePreEclair(File cacheDir, long maxByteSize, int maxItemCount) {
+            super(cacheDir, maxByteSize, maxItemCount);
         }
 
         /**
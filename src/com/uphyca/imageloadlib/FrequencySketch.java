@@ -0,0 +1,97 @@
+package com.uphyca.imageloadlib;
+
+/**
+ * A count-min sketch of how often keys were accessed recently, in 4-bit
+ * counters packed sixteen to a long. Each key is counted in four counters and
+ * its frequency is the smallest of them, so collisions can only overestimate.
+ * Once enough increments have been recorded every counter is halved, so the
+ * sketch follows changes in popularity. Not thread safe.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MIN_SIZE = 16;
+    // この回数 (最大要素数の倍数) 数えたら全カウンタを半分にする
+    private static final int SAMPLE_SIZE_MULTIPLIER = 10;
+
+    private final long[] mTable;
+    private final int mTableMask;
+    private final int mSampleSize;
+    private int mSize;
+
+    /**
+     * @param maximumSize
+     *            the number of entries the cache holds at most
+     */
+    FrequencySketch(int maximumSize) {
+        final int size = Math.max(maximumSize, MIN_SIZE);
+        final int capacity = Integer.highestOneBit(size - 1) << 1;
+        mTable = new long[capacity];
+        mTableMask = capacity - 1;
+        mSampleSize = SAMPLE_SIZE_MULTIPLIER * size;
+    }
+
+    /**
+     * @return the estimated number of recent accesses of the key, at most 15
+     */
+    int frequency(String key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xFL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of the key.
+     */
+    void increment(String key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++mSize >= mSampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        final int offset = counter << 2;
+        final long mask = 0xFL << offset;
+        if ((mTable[index] & mask) != mask) {
+            mTable[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < mTable.length; i++) {
+            odd += Long.bitCount(mTable[i] & ONE_MASK);
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mSize = (mSize >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEED[i]) * SEED[i];
+        h += h >>> 32;
+        return ((int) h) & mTableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
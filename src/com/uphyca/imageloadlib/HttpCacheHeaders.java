@@ -0,0 +1,119 @@
+package com.uphyca.imageloadlib;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Reads and writes the HTTP headers that decide how long a downloaded image
+ * stays fresh and how it is revalidated once it is stale.
+ */
+final class HttpCacheHeaders {
+
+    // Last-Modified からの推定では経過時間のこの割合だけ新鮮とみなす (RFC 7234 4.2.2)
+    private static final int HEURISTIC_FRESHNESS_DIVIDER = 10;
+
+    private HttpCacheHeaders() {
+    }
+
+    /**
+     * Makes the request conditional on the stored validators, so that the
+     * server answers 304 without a body if the entry is still valid.
+     */
+    static void addConditionalHeaders(HttpURLConnection connection, DiskLruCache.Validators validators) {
+        if (validators == null) {
+            return;
+        }
+        if (validators.etag != null) {
+            connection.setRequestProperty("If-None-Match", validators.etag);
+        }
+        if (validators.lastModified != 0) {
+            connection.setIfModifiedSince(validators.lastModified);
+        }
+    }
+
+    /**
+     * Reads the validators and the freshness lifetime of a response.
+     *
+     * @param connection
+     * @param now
+     *            the time the response was received
+     * @return the validators, or null if the response has neither validators
+     *         nor an expiry
+     */
+    static DiskLruCache.Validators parse(HttpURLConnection connection, long now) {
+        final String etag = connection.getHeaderField("ETag");
+        final long lastModified = connection.getHeaderFieldDate("Last-Modified", 0);
+
+        long expires = 0;
+        boolean noCache = false;
+        long maxAgeSeconds = -1;
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            final String[] directives = cacheControl.split(",");
+            for (int i = 0; i < directives.length; i++) {
+                final String directive = directives[i].trim().toLowerCase();
+                if (directive.equals("no-cache")) {
+                    noCache = true;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAgeSeconds = Long.parseLong(directive.substring("max-age=".length()).trim());
+                    } catch (final NumberFormatException e) {
+                        // 不正な値は無視する
+                    }
+                }
+            }
+        }
+
+        if (noCache) {
+            expires = now;
+        } else if (maxAgeSeconds >= 0) {
+            expires = now + maxAgeSeconds * 1000;
+        } else if (connection.getHeaderField("Expires") != null) {
+            // 日付として読めない Expires はすでに期限切れとみなす
+            expires = Math.max(1, connection.getHeaderFieldDate("Expires", now));
+        } else if (lastModified != 0 && lastModified < now) {
+            expires = now + (now - lastModified) / HEURISTIC_FRESHNESS_DIVIDER;
+        }
+
+        if (etag == null && lastModified == 0 && expires == 0) {
+            return null;
+        }
+        return new DiskLruCache.Validators(etag, lastModified, expires, now);
+    }
+
+    /**
+     * Combines the stored validators with those of a 304 response, which may
+     * omit headers that did not change. If the 304 says nothing about
+     * freshness, the entry stays fresh for as long as the stored response
+     * did, counted from now.
+     *
+     * @param stored
+     * @param fresh
+     *            the validators of the 304, or null if it had none
+     * @param now
+     *            the time the 304 was received
+     */
+    static DiskLruCache.Validators merge(DiskLruCache.Validators stored, DiskLruCache.Validators fresh, long now) {
+        if (stored == null) {
+            return fresh;
+        }
+        final String etag = fresh != null && fresh.etag != null ? fresh.etag : stored.etag;
+        final long lastModified = fresh != null && fresh.lastModified != 0 ? fresh.lastModified
+                : stored.lastModified;
+        final long expires = fresh != null && fresh.expires != 0 ? fresh.expires : renewExpiry(stored, now);
+        return new DiskLruCache.Validators(etag, lastModified, expires, now);
+    }
+
+    private static long renewExpiry(DiskLruCache.Validators stored, long now) {
+        if (stored.expires == 0) {
+            return 0;
+        }
+        if (stored.responseTime != 0) {
+            return now + Math.max(0, stored.expires - stored.responseTime);
+        }
+        // 以前の版が保存したもので新鮮だった期間がわからない
+        if (stored.lastModified != 0 && stored.lastModified < now) {
+            return now + (now - stored.lastModified) / HEURISTIC_FRESHNESS_DIVIDER;
+        }
+        return now;
+    }
+}
@@ -0,0 +1,169 @@
+package com.uphyca.imageloadlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Opens the HTTP connections image downloads run on. Connections are left to
+ * the platform keep-alive pool instead of being disconnected after every
+ * image: a response body that was read to the end is closed, which hands the
+ * socket back for the next request to the same host. The number of requests
+ * running against one host at a time is limited, so that a burst of
+ * thumbnails from one server does not open a connection per image.
+ */
+final class HttpTransport {
+
+    // これより大きいエラーレスポンスは読み捨てずに接続ごと閉じる
+    private static final int MAX_DRAIN_BYTES = 16 * 1024; // 16KB
+    private static final int DRAIN_BUFFER_SIZE = 1024;
+
+    private final int mMaxRequestsPerHost;
+    private final HashMap<String, Semaphore> mHostPermits = new HashMap<String, Semaphore>();
+
+    /**
+     * @param maxRequestsPerHost
+     *            how many requests may run against one host at once
+     */
+    HttpTransport(int maxRequestsPerHost) {
+        mMaxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    /**
+     * Opens a connection to the URL, waiting while the host already has the
+     * maximum number of requests running. The exchange must be closed.
+     *
+     * @param url
+     * @return the exchange
+     * @throws IOException
+     */
+    Exchange open(URL url) throws IOException {
+        final Semaphore permit = getPermit(url.getHost());
+        try {
+            permit.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + url.getHost());
+        }
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            if (!Utils.hasFroyo()) {
+                // Froyo より前は接続の再利用に不具合がある
+                // http://android-developers.blogspot.com/2011/09/androids-http-clients.html
+                connection.setRequestProperty("Connection", "close");
+            }
+            return new Exchange(connection, permit);
+        } catch (final IOException e) {
+            permit.release();
+            throw e;
+        } catch (final RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+    }
+
+    private Semaphore getPermit(String host) {
+        synchronized (mHostPermits) {
+            Semaphore permit = mHostPermits.get(host);
+            if (permit == null) {
+                permit = new Semaphore(mMaxRequestsPerHost);
+                mHostPermits.put(host, permit);
+            }
+            return permit;
+        }
+    }
+
+    /**
+     * One request and its response.
+     */
+    final class Exchange {
+        final HttpURLConnection connection;
+        private final Semaphore mPermit;
+        private InputStream mBody;
+        private boolean mBodyConsumed;
+        private boolean mClosed;
+
+        private Exchange(HttpURLConnection connection, Semaphore permit) {
+            this.connection = connection;
+            mPermit = permit;
+        }
+
+        /**
+         * @return the response body. It is closed by {@link #close()}.
+         * @throws IOException
+         */
+        InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mBody = connection.getInputStream();
+            }
+            return mBody;
+        }
+
+        /**
+         * Marks the body as read to the end, so that the connection can be
+         * reused.
+         */
+        void setBodyConsumed() {
+            mBodyConsumed = true;
+        }
+
+        /**
+         * Reads and drops a body that is not needed, e.g. of an error or 304
+         * response, so that the connection can still be reused. Large bodies
+         * are not read; their connection is closed instead.
+         */
+        void discardBody() {
+            try {
+                InputStream in = connection.getErrorStream();
+                if (in == null) {
+                    in = connection.getInputStream();
+                }
+                mBody = in;
+                final byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+                long total = 0;
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    total += n;
+                    if (total > MAX_DRAIN_BYTES) {
+                        return;
+                    }
+                }
+                mBodyConsumed = true;
+            } catch (final IOException e) {
+                // 読めなければ接続を閉じるだけ
+            }
+        }
+
+        /**
+         * Returns the connection to the keep-alive pool if its body was read to
+         * the end, or closes it otherwise, and lets the next request to the
+         * host start.
+         */
+        void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                if (mBodyConsumed && Utils.hasFroyo()) {
+                    if (mBody != null) {
+                        mBody.close();
+                    }
+                    ImageLoadMetrics.count(ImageLoadMetrics.HTTP_CONNECTION_KEPT_ALIVE);
+                } else {
+                    connection.disconnect();
+                    ImageLoadMetrics.count(ImageLoadMetrics.HTTP_CONNECTION_CLOSED);
+                }
+            } catch (final IOException e) {
+                connection.disconnect();
+                ImageLoadMetrics.count(ImageLoadMetrics.HTTP_CONNECTION_CLOSED);
+            } finally {
+                mPermit.release();
+            }
+        }
+    }
+}
@@ -1,16 +1,26 @@
 package com.uphyca.imageloadlib;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Build;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.util.LruCache;
+import android.util.Log;
 
 import com.uphyca.imageloadlib.ImageCacheParams.ImageCacheParamsPostEclair;
 import com.uphyca.imageloadlib.ImageCacheParams.ImageCacheParamsPreEclair;
@@ -19,7 +29,38 @@ public abstract class ImageCache {
     private static final String TAG = ImageCache.class.getSimpleName();
 
     private LruCache<String, Bitmap> mMemoryCache;
+    // ディスクキャッシュのキーごとのデコード前の画像データ
+    private LruCache<String, byte[]> mEncodedCache;
+    private int mEncodedCacheMaxEntrySize;
     private DiskLruCache mDiskCache;
+    private DiskCacheWriter mDiskCacheWriter;
+    private BitmapPool mBitmapPool;
+    private int mDecodeConfig = ImageCacheParams.DEFAULT_DECODE_CONFIG;
+
+    // 表示中の Bitmap の参照数。0 になるまでプールに戻さない
+    private final IdentityHashMap<Bitmap, Integer> mDisplayCounts = new IdentityHashMap<Bitmap, Integer>();
+    // メモリキャッシュから外れたが、まだ表示中の Bitmap とそのキー
+    private final IdentityHashMap<Bitmap, String> mEvictedBitmaps = new IdentityHashMap<Bitmap, String>();
+    // メモリキャッシュから外れたが、まだ生きているかもしれない Bitmap。
+    // mDisplayCounts のロックで守る
+    private final HashMap<String, WeakReference<Bitmap>> mWeakBitmaps = new HashMap<String, WeakReference<Bitmap>>();
+    private int mWeakBitmapsPurgeSize = MIN_WEAK_BITMAPS_PURGE_SIZE;
+    // URL ごとにメモリキャッシュにあるサイズ違いのキー
+    private final HashMap<String, ArrayList<String>> mVariantKeys = new HashMap<String, ArrayList<String>>();
+
+    private static final char MEM_CACHE_KEY_SEPARATOR = '#';
+
+    // 解放済みの弱参照を掃除するまでに溜める数の最小値
+    private static final int MIN_WEAK_BITMAPS_PURGE_SIZE = 64;
+
+    // これより大きい画像データは 1 つで多くを追い出すので持たない (上限/this)
+    private static final int ENCODED_CACHE_ENTRY_DIVIDER = 8;
+
+    // トリム後、この回数の追加で元の上限まで戻す
+    private static final int MEM_CACHE_REGROW_STEPS = 16;
+
+    // メモリ不足のときに一時的に下げる上限。普段は LruCache の上限と同じ
+    private volatile int mMemoryCacheCap;
 
     protected ImageCache(Context context, ImageCacheParams cacheParams) {
         init(context, cacheParams);
@@ -29,21 +70,340 @@ public abstract class ImageCache {
     }
 
     protected void init(Context context, ImageCacheParams cacheParams) {
+        mDecodeConfig = cacheParams.decodeConfig;
 
         // Set up disk cache
         if (cacheParams.diskCacheEnabled) {
             final File diskCacheDir = DiskLruCache.getDiskCacheDir(context, cacheParams.uniqueName);
-            mDiskCache = DiskLruCache.openCache(context, diskCacheDir, cacheParams.diskCacheSize);
+            // 同じディレクトリがすでに開かれていれば、その設定のまま共有する
+            mDiskCache = DiskLruCache.openCache(context, diskCacheDir, cacheParams.diskCacheSize,
+                    cacheParams.diskCacheMaxItems, cacheParams.diskCacheEvictionPolicy,
+                    cacheParams.diskCacheSlabStoreEnabled);
+            if (mDiskCache != null) {
+                mDiskCache.scheduleMaintenance();
+                mDiskCacheWriter = new DiskCacheWriter(mDiskCache, this);
+            }
         }
 
         // Set up memory cache
         if (cacheParams.memoryCacheEnabled) {
+            if (BitmapPool.isSupported() && cacheParams.bitmapPoolSize > 0) {
+                mBitmapPool = new BitmapPool(cacheParams.bitmapPoolSize);
+            }
+
+            mMemoryCacheCap = cacheParams.memCacheSize;
             mMemoryCache = new LruCache<String, Bitmap>(cacheParams.memCacheSize) {
                 @Override
                 protected int sizeOf(String key, Bitmap bitmap) {
                     return getBitmapSize(bitmap);
                 }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                    if (newValue == null) {
+                        removeVariantKey(key);
+                    }
+                    if (evicted) {
+                        ImageLoadMetrics.count(ImageLoadMetrics.MEMORY_EVICTION);
+                    }
+                    if (oldValue != newValue) {
+                        onBitmapRemoved(key, oldValue);
+                    }
+                }
             };
+
+            if (cacheParams.encodedMemCacheSize > 0) {
+                mEncodedCacheMaxEntrySize = cacheParams.encodedMemCacheSize / ENCODED_CACHE_ENTRY_DIVIDER;
+                mEncodedCache = new LruCache<String, byte[]>(cacheParams.encodedMemCacheSize) {
+                    @Override
+                    protected int sizeOf(String key, byte[] bytes) {
+                        return bytes.length;
+                    }
+                };
+            }
+        }
+    }
+
+    /**
+     * Release memory in response to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}. The memory cache is
+     * shrunk by a share that depends on the level, and its size limit is
+     * lowered to match; the limit then grows back step by step as bitmaps
+     * are added again.
+     * @param level
+     *            a ComponentCallbacks2.TRIM_MEMORY_* level
+     */
+    public void trimMemory(int level) {
+        if (mMemoryCache == null) {
+            return;
+        }
+        final int maxSize = mMemoryCache.maxSize();
+        final int cap;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            // 次に殺されるプロセスなので全部捨てる
+            cap = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            cap = maxSize / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // 画面に出ていないので表示中の Bitmap もない
+            cap = maxSize / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            cap = maxSize / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cap = maxSize / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            cap = maxSize * 3 / 4;
+        } else {
+            return;
+        }
+
+        mMemoryCacheCap = Math.min(mMemoryCacheCap, cap);
+        if (cap == 0) {
+            mMemoryCache.evictAll();
+        } else {
+            trimMemoryCacheToSize(cap);
+        }
+        if (mBitmapPool != null && level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // トリムで戻ってきた Bitmap も捨てる
+            mBitmapPool.evictAll();
+        }
+        if (mEncodedCache != null && level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // ディスクから読み直せる
+            mEncodedCache.evictAll();
+        }
+    }
+
+    /**
+     * Same as {@link #trimMemory(int)} with the most severe level, for
+     * {@link android.content.ComponentCallbacks#onLowMemory()}.
+     */
+    public void onLowMemory() {
+        trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    private void regrowMemoryCache() {
+        final int maxSize = mMemoryCache.maxSize();
+        final int cap = Math.min(maxSize, mMemoryCacheCap + Math.max(1, maxSize / MEM_CACHE_REGROW_STEPS));
+        mMemoryCacheCap = cap;
+        trimMemoryCacheToSize(cap);
+    }
+
+    /**
+     * Remove the least recently used bitmaps until the memory cache holds at
+     * most maxSize bytes.
+     */
+    private void trimMemoryCacheToSize(int maxSize) {
+        if (mMemoryCache.size() <= maxSize) {
+            return;
+        }
+        // snapshot は古い順に並んでいる
+        final Iterator<String> keys = mMemoryCache.snapshot().keySet().iterator();
+        while (mMemoryCache.size() > maxSize && keys.hasNext()) {
+            if (mMemoryCache.remove(keys.next()) != null) {
+                ImageLoadMetrics.count(ImageLoadMetrics.MEMORY_EVICTION);
+            }
+        }
+    }
+
+    /**
+     * Hands a bitmap that left the memory cache to the reuse pool, or defers
+     * that until no view displays it anymore. A bitmap that is still alive is
+     * remembered weakly, so that a later lookup can take it back into the
+     * memory cache instead of decoding the image again.
+     */
+    private void onBitmapRemoved(String key, Bitmap bitmap) {
+        synchronized (mDisplayCounts) {
+            if (mBitmapPool == null) {
+                // プールがなければ GC されるまで使える
+                putWeakBitmap(key, bitmap);
+            } else if (mDisplayCounts.containsKey(bitmap)) {
+                mEvictedBitmaps.put(bitmap, key);
+                putWeakBitmap(key, bitmap);
+            } else {
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    private void putWeakBitmap(String key, Bitmap bitmap) {
+        mWeakBitmaps.put(key, new WeakReference<Bitmap>(bitmap));
+        if (mWeakBitmaps.size() >= mWeakBitmapsPurgeSize) {
+            for (Iterator<WeakReference<Bitmap>> it = mWeakBitmaps.values().iterator(); it.hasNext();) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+            mWeakBitmapsPurgeSize = Math.max(MIN_WEAK_BITMAPS_PURGE_SIZE, mWeakBitmaps.size() * 2);
+        }
+    }
+
+    private void removeWeakBitmap(String key, Bitmap bitmap) {
+        final WeakReference<Bitmap> reference = mWeakBitmaps.get(key);
+        if (reference != null && (bitmap == null || reference.get() == bitmap)) {
+            mWeakBitmaps.remove(key);
+        }
+    }
+
+    /**
+     * Take a bitmap that left the memory cache but is still alive back into
+     * the memory cache.
+     * @return the bitmap or null if it is gone
+     */
+    private Bitmap promoteWeakBitmap(String key) {
+        final Bitmap bitmap;
+        synchronized (mDisplayCounts) {
+            final WeakReference<Bitmap> reference = mWeakBitmaps.remove(key);
+            bitmap = reference != null ? reference.get() : null;
+            if (bitmap == null || bitmap.isRecycled()) {
+                return null;
+            }
+            // 再びキャッシュされるのでプールには戻さない
+            mEvictedBitmaps.remove(bitmap);
+            mMemoryCache.put(key, bitmap);
+        }
+        final int separator = key.lastIndexOf(MEM_CACHE_KEY_SEPARATOR);
+        if (separator >= 0) {
+            addVariantKey(key.substring(0, separator), key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Create the memory cache key of an image decoded for the given size.
+     * @param data
+     * @param width
+     * @param height
+     * @return the key
+     */
+    public static String createMemCacheKey(String data, int width, int height) {
+        return data + MEM_CACHE_KEY_SEPARATOR + width + 'x' + height;
+    }
+
+    private void addVariantKey(String data, String key) {
+        synchronized (mVariantKeys) {
+            ArrayList<String> keys = mVariantKeys.get(data);
+            if (keys == null) {
+                keys = new ArrayList<String>(2);
+                mVariantKeys.put(data, keys);
+            }
+            if (!keys.contains(key)) {
+                keys.add(key);
+            }
+        }
+    }
+
+    private void removeVariantKey(String key) {
+        final int separator = key.lastIndexOf(MEM_CACHE_KEY_SEPARATOR);
+        if (separator < 0) {
+            return;
+        }
+        final String data = key.substring(0, separator);
+        synchronized (mVariantKeys) {
+            final ArrayList<String> keys = mVariantKeys.get(data);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                mVariantKeys.remove(data);
+            }
+        }
+    }
+
+    /**
+     * Find the smallest bitmap of the given image in the memory cache that is
+     * at least as large as the given size in both dimensions, and mark it as
+     * displayed like {@link ImageCache#retainBitmapFromMemCache(String)}.
+     * @param data
+     * @param width
+     * @param height
+     * @return the bitmap or null if not found
+     */
+    public Bitmap retainLargerVariantFromMemCache(String data, int width, int height) {
+        if (mMemoryCache == null) {
+            return null;
+        }
+        final String[] keys;
+        synchronized (mVariantKeys) {
+            final ArrayList<String> variantKeys = mVariantKeys.get(data);
+            if (variantKeys == null) {
+                return null;
+            }
+            keys = variantKeys.toArray(new String[variantKeys.size()]);
+        }
+        synchronized (mDisplayCounts) {
+            Bitmap best = null;
+            for (int i = 0; i < keys.length; i++) {
+                final Bitmap bitmap = mMemoryCache.get(keys[i]);
+                if (bitmap != null && bitmap.getWidth() >= width && bitmap.getHeight() >= height
+                        && (best == null || getBitmapSize(bitmap) < getBitmapSize(best))) {
+                    best = bitmap;
+                }
+            }
+            if (best != null) {
+                retainDisplayedBitmap(best);
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Get the pool of reusable bitmaps fed by the memory cache.
+     * @return the pool, or null if bitmap reuse is not available
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Get a bitmap from the memory cache and mark it as displayed in one step,
+     * so that it can not be handed to the reuse pool in between. Call
+     * {@link ImageCache#releaseDisplayedBitmap(Bitmap)} once it is not
+     * displayed anymore.
+     * @param data
+     * @return the bitmap or null if not found
+     */
+    public Bitmap retainBitmapFromMemCache(String data) {
+        synchronized (mDisplayCounts) {
+            final Bitmap bitmap = getBitmapFromMemCache(data);
+            if (bitmap != null) {
+                retainDisplayedBitmap(bitmap);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Mark a bitmap as displayed (or about to be displayed). It will not be
+     * reused for decoding until every retain has been released.
+     * @param bitmap
+     */
+    public void retainDisplayedBitmap(Bitmap bitmap) {
+        synchronized (mDisplayCounts) {
+            final Integer count = mDisplayCounts.get(bitmap);
+            mDisplayCounts.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Release a display reference taken with
+     * {@link ImageCache#retainDisplayedBitmap(Bitmap)} or
+     * {@link ImageCache#retainBitmapFromMemCache(String)}.
+     * @param bitmap
+     */
+    public void releaseDisplayedBitmap(Bitmap bitmap) {
+        synchronized (mDisplayCounts) {
+            final Integer count = mDisplayCounts.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                mDisplayCounts.put(bitmap, count - 1);
+                return;
+            }
+            mDisplayCounts.remove(bitmap);
+            final String key = mEvictedBitmaps.remove(bitmap);
+            if (key != null && mBitmapPool != null) {
+                // プールで上書きされるので弱参照からも外す
+                removeWeakBitmap(key, bitmap);
+                mBitmapPool.put(bitmap);
+            }
         }
     }
 
@@ -78,6 +438,31 @@ public abstract class ImageCache {
         return imageCache;
     }
 
+    /**
+     * Find the cache retained for the activity, or create one with the given
+     * parameters.
+     * @param activity
+     * @param cacheParams
+     * @return the cache
+     */
+    public static ImageCache findOrCreateCache(final FragmentActivity activity, final ImageCacheParams cacheParams) {
+
+        final RetainFragment mRetainFragment = findOrCreateRetainFragment(activity.getSupportFragmentManager());
+
+        ImageCache imageCache = (ImageCache) mRetainFragment.getObject();
+
+        if (imageCache == null) {
+            if (Utils.hasEclair()) {
+                imageCache = new ImageCachePostEclair(activity, cacheParams);
+            } else {
+                imageCache = new ImageCachePreEclair(activity, cacheParams);
+            }
+            mRetainFragment.setObject(imageCache);
+        }
+
+        return imageCache;
+    }
+
     protected static RetainFragment findOrCreateRetainFragment(FragmentManager fm) {
 
         RetainFragment mRetainFragment = (RetainFragment) fm.findFragmentByTag(TAG);
@@ -92,64 +477,386 @@ public abstract class ImageCache {
 
     public Bitmap getBitmapFromMemCache(String data) {
         if (mMemoryCache != null) {
-            final Bitmap memBitmap = mMemoryCache.get(data);
+            Bitmap memBitmap = mMemoryCache.get(data);
+            if (memBitmap == null) {
+                // 追い出された後もまだ表示されているかもしれない
+                memBitmap = promoteWeakBitmap(data);
+            }
             if (memBitmap != null) {
+                ImageLoadMetrics.count(ImageLoadMetrics.MEMORY_HIT);
                 return memBitmap;
             }
+            ImageLoadMetrics.count(ImageLoadMetrics.MEMORY_MISS);
         }
         return null;
     }
 
+    /**
+     * Get an image from the disk cache at full resolution.
+     * @param data
+     * @return the bitmap or null if not found
+     * @deprecated The disk cache holds the original downloads, which can be
+     *             far larger than any view. Use
+     *             {@link #getBitmapFromDiskCache(String, int, int)} instead.
+     */
+    @Deprecated
     public Bitmap getBitmapFromDiskCache(String data) {
         final String key = hashKeyForDisk(data);
 
         if (mDiskCache != null) {
-            return mDiskCache.get(key);
+            // 書き込み待ちならそれを返す
+            final Bitmap pending = mDiskCacheWriter.get(key);
+            if (pending != null) {
+                ImageLoadMetrics.count(ImageLoadMetrics.DISK_HIT);
+                return pending;
+            }
+            return mDiskCache.get(key, mDecodeConfig);
         }
         return null;
     }
 
-    public static String hashKeyForDisk(String key) {
-        String cacheKey;
+    /**
+     * Get an image from the disk cache, sampled and scaled down so that it
+     * just covers the requested size.
+     * @param data
+     * @param reqWidth
+     * @param reqHeight
+     * @return the bitmap or null if not found
+     */
+    public Bitmap getBitmapFromDiskCache(String data, int reqWidth, int reqHeight) {
+        final String key = hashKeyForDisk(data);
+
+        if (mDiskCache != null) {
+            // 書き込み待ちのものはすでにメモリにある
+            final Bitmap pending = mDiskCacheWriter.get(key);
+            if (pending != null) {
+                ImageLoadMetrics.count(ImageLoadMetrics.DISK_HIT);
+                return pending;
+            }
+            return mDiskCache.decode(key, mDiskCache.getSource(key), reqWidth, reqHeight, mBitmapPool,
+                    mDecodeConfig);
+        }
+        return null;
+    }
+
+    /**
+     * @return the ImageCacheParams.DECODE_CONFIG_* policy images in this cache
+     *         are decoded with
+     */
+    public int getDecodeConfig() {
+        return mDecodeConfig;
+    }
+
+    public boolean hasDiskCache() {
+        return mDiskCache != null;
+    }
+
+    /**
+     * Get the file holding the original bytes of a disk cache entry.
+     * @param data
+     * @return the cache file or null if not found
+     */
+    public File getFileFromDiskCache(String data) {
+        if (mDiskCache != null) {
+            return mDiskCache.getFile(hashKeyForDisk(data));
+        }
+        return null;
+    }
+
+    /**
+     * Get the original bytes of an image, from the memory cache of encoded
+     * bytes if it has them, otherwise from the disk cache. Bytes read from the
+     * disk are kept in the memory cache of encoded bytes.
+     * @param request
+     * @return the stored bytes or null if not found
+     */
+    DiskLruCache.Source getSourceFromDiskCache(ImageRequest request) {
+        if (mDiskCache == null) {
+            return null;
+        }
+        final String key = request.getDiskKey();
+        if (mEncodedCache != null) {
+            final byte[] bytes = mEncodedCache.get(key);
+            if (bytes != null) {
+                ImageLoadMetrics.count(ImageLoadMetrics.ENCODED_MEMORY_HIT);
+                // ディスク側でも使われたことにしないと、よく見る画像から追い出される
+                mDiskCache.touch(key);
+                return new DiskLruCache.Source(null, bytes);
+            }
+            ImageLoadMetrics.count(ImageLoadMetrics.ENCODED_MEMORY_MISS);
+        }
+        return addEncodedBytesToCache(request, mDiskCache.getSource(key));
+    }
+
+    /**
+     * Keep the original bytes of an image in the memory cache of encoded
+     * bytes, if it is enabled and they are small enough.
+     * @param request
+     * @param source
+     *            the stored bytes, or null
+     * @return the source to decode: the bytes in memory if they were kept,
+     *         otherwise the given source
+     */
+    DiskLruCache.Source addEncodedBytesToCache(ImageRequest request, DiskLruCache.Source source) {
+        if (mEncodedCache == null || source == null) {
+            return source;
+        }
+        byte[] bytes = source.bytes;
+        if (bytes == null) {
+            final long length = source.file.length();
+            if (length <= 0 || length > mEncodedCacheMaxEntrySize) {
+                return source;
+            }
+            bytes = readFile(source.file, (int) length);
+            if (bytes == null) {
+                return source;
+            }
+        } else if (bytes.length > mEncodedCacheMaxEntrySize) {
+            return source;
+        }
+        mEncodedCache.put(request.getDiskKey(), bytes);
+        return new DiskLruCache.Source(null, bytes);
+    }
+
+    private static byte[] readFile(File file, int length) {
+        FileInputStream in = null;
         try {
-            final MessageDigest mDigest = MessageDigest.getInstance("SHA-1");
-            mDigest.update(key.getBytes());
-            cacheKey = bytesToHexString(mDigest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
+            in = new FileInputStream(file);
+            final byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                final int n = in.read(bytes, offset, length - offset);
+                if (n == -1) {
+                    return null;
+                }
+                offset += n;
+            }
+            return bytes;
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in readFile: " + e.getMessage());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+            }
         }
+    }
 
-        return cacheKey;
+    /**
+     * Start writing the original bytes of an image to the disk cache.
+     * @param data
+     * @return an editor, or null if the disk cache is disabled
+     * @throws IOException
+     */
+    public DiskLruCache.Editor editDiskCache(String data) throws IOException {
+        if (mDiskCache != null) {
+            return mDiskCache.edit(hashKeyForDisk(data));
+        }
+        return null;
     }
 
-    private static String bytesToHexString(byte[] bytes) {
-        // http://stackoverflow.com/questions/332079
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
+    DiskLruCache.Editor editDiskCache(ImageRequest request) throws IOException {
+        if (mDiskCache != null) {
+            return mDiskCache.edit(request.getDiskKey());
+        }
+        return null;
+    }
+
+    /**
+     * Remove an entry from the disk cache, e.g. when its bytes can not be
+     * decoded.
+     * @param data
+     */
+    public void removeFromDiskCache(String data) {
+        if (mDiskCache != null) {
+            final String key = hashKeyForDisk(data);
+            if (mEncodedCache != null) {
+                mEncodedCache.remove(key);
+            }
+            mDiskCache.removeEntry(key);
+        }
+    }
+
+    /**
+     * Remove every entry from the disk cache, including bitmaps still waiting
+     * to be written, and the encoded bytes read from it.
+     */
+    public void clearDiskCache() {
+        if (mDiskCache == null) {
+            return;
+        }
+        // 書き込み待ちを先に捨てないと消した直後に書き戻される
+        mDiskCacheWriter.clear();
+        if (mEncodedCache != null) {
+            mEncodedCache.evictAll();
+        }
+        mDiskCache.clearCache();
+    }
+
+    /**
+     * @return the validators of the disk cache entry of the request, or null
+     */
+    DiskLruCache.Validators getDiskCacheValidators(ImageRequest request) {
+        if (mDiskCache != null) {
+            return mDiskCache.getValidators(request.getDiskKey());
+        }
+        return null;
+    }
+
+    void updateDiskCacheValidators(ImageRequest request, DiskLruCache.Validators validators) {
+        if (mDiskCache != null) {
+            mDiskCache.updateValidators(request.getDiskKey(), validators);
+        }
+    }
+
+    /**
+     * Remove every size of an image from the memory cache, e.g. after its
+     * bytes changed on the server. Bitmaps still displayed stay on screen.
+     * @param data
+     */
+    public void removeFromMemCache(String data) {
+        if (mMemoryCache == null) {
+            return;
+        }
+        final String[] keys;
+        synchronized (mVariantKeys) {
+            final ArrayList<String> variantKeys = mVariantKeys.get(data);
+            keys = variantKeys != null ? variantKeys.toArray(new String[variantKeys.size()]) : new String[0];
+        }
+        for (int i = 0; i < keys.length; i++) {
+            mMemoryCache.remove(keys[i]);
+        }
+        mMemoryCache.remove(data);
+        if (mEncodedCache != null) {
+            mEncodedCache.remove(hashKeyForDisk(data));
+        }
+
+        // 古い内容の Bitmap を弱参照から拾わないようにする
+        synchronized (mDisplayCounts) {
+            for (int i = 0; i < keys.length; i++) {
+                removeWeakBitmap(keys[i], null);
             }
-            sb.append(hex);
+            removeWeakBitmap(data, null);
         }
-        return sb.toString();
     }
 
-    public synchronized void addBitmapToCache(String data, Bitmap bitmap) {
+    void removeFromDiskCache(ImageRequest request) {
+        if (mDiskCache != null) {
+            if (mEncodedCache != null) {
+                mEncodedCache.remove(request.getDiskKey());
+            }
+            mDiskCache.removeEntry(request.getDiskKey());
+        }
+    }
+
+    /**
+     * Create the disk cache key of an image: the hex encoded SHA-1 of its URL.
+     * The digest is reused per thread, so this only allocates the key itself
+     * and a few arrays.
+     * @param key
+     * @return the disk cache key
+     */
+    public static String hashKeyForDisk(String key) {
+        final MessageDigest digest = sDigest.get();
+        if (digest == null) {
+            return String.valueOf(key.hashCode());
+        }
+        byte[] bytes;
+        try {
+            bytes = key.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            bytes = key.getBytes();
+        }
+        return bytesToHexString(digest.digest(bytes));
+    }
+
+    private static final ThreadLocal<MessageDigest> sDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (final NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
+    private static final char[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd',
+            'e', 'f' };
+
+    private static String bytesToHexString(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0, j = 0; i < bytes.length; i++) {
+            chars[j++] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            chars[j++] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Add a bitmap to the memory cache and schedule it to be written to the
+     * disk cache. Neither waits for the disk; the write happens on a
+     * background thread.
+     * @param data
+     * @param bitmap
+     */
+    public void addBitmapToCache(String data, Bitmap bitmap) {
+        addBitmapToCache(data, data, bitmap);
+    }
+
+    /**
+     * Add a bitmap decoded for a particular size. It is stored in the memory
+     * cache under memCacheKey, see
+     * {@link ImageCache#createMemCacheKey(String, int, int)}, and in the disk
+     * cache under data.
+     * @param data
+     * @param memCacheKey
+     * @param bitmap
+     */
+    public void addBitmapToCache(String data, String memCacheKey, Bitmap bitmap) {
         if (data == null || bitmap == null) {
             return;
         }
 
         // Add to memory cache
-        if (mMemoryCache != null && mMemoryCache.get(data) == null) {
-            mMemoryCache.put(data, bitmap);
-        }
+        addBitmapToMemCache(data, memCacheKey, bitmap);
 
         // Add to disk cache
         if (mDiskCache != null) {
             final String key = hashKeyForDisk(data);
-            if (!mDiskCache.containsKey(key)) {
-                mDiskCache.put(key, bitmap);
+            if (!mDiskCache.containsKey(key) && !mDiskCacheWriter.contains(key)) {
+                mDiskCacheWriter.enqueue(key, bitmap);
+            }
+        }
+    }
+
+    /**
+     * Add a bitmap decoded by the fetcher to the memory cache only. The
+     * fetcher already wrote the original bytes to the disk cache, so the
+     * decoded, possibly scaled down bitmap must not replace them.
+     */
+    void addBitmapToMemCache(ImageRequest request, Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        addBitmapToMemCache(request.url, request.memCacheKey, bitmap);
+    }
+
+    private void addBitmapToMemCache(String data, String memCacheKey, Bitmap bitmap) {
+        if (mMemoryCache != null && mMemoryCache.get(memCacheKey) == null) {
+            if (!data.equals(memCacheKey)) {
+                addVariantKey(data, memCacheKey);
+            }
+            mMemoryCache.put(memCacheKey, bitmap);
+            if (mMemoryCacheCap < mMemoryCache.maxSize()) {
+                regrowMemoryCache();
+            }
+            if (ImageLoadMetrics.isEnabled()) {
+                ImageLoadMetrics.setMemoryCacheSize(mMemoryCache.size(), mMemoryCache.maxSize());
             }
         }
     }
@@ -166,12 +873,17 @@ public abstract class ImageCache {
         }
 
         /**
-         * Get the size in bytes of a bitmap.
+         * Get the size in bytes of a bitmap. On KitKat this is the memory the
+         * bitmap holds, which is more than it uses if a decode reused a larger
+         * bitmap for it.
          * @param bitmap
          * @return size in bytes
          */
-        @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
+        @TargetApi(Build.VERSION_CODES.KITKAT)
         protected static int getBitmapSize(Bitmap bitmap) {
+            if (Utils.hasKitKat()) {
+                return bitmap.getAllocationByteCount();
+            }
             if (Utils.hasHoneycombMR1()) {
                 return bitmap.getByteCount();
             }
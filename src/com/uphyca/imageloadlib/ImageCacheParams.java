@@ -14,8 +14,25 @@ public abstract class ImageCacheParams {
                                                               // = mem cache
                                                               // size
 
+    // Default bitmap reuse pool size
+    protected static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 512; // 512KB
+    protected static final int DEFAULT_BITMAP_POOL_DIVIDER = 4; // mem cache
+                                                                // size/this =
+                                                                // pool size
+
+    // Default size of the memory cache of encoded image bytes, 0 to disable
+    protected static final int DEFAULT_ENCODED_MEM_CACHE_SIZE = 0;
+
+    // Bitmap config to decode images with
+    public static final int DECODE_CONFIG_ARGB_8888 = 0; // always ARGB_8888
+    public static final int DECODE_CONFIG_AUTO = 1; // RGB_565 for JPEG,
+                                                    // which has no alpha
+    public static final int DECODE_CONFIG_RGB_565 = 2; // always RGB_565
+    protected static final int DEFAULT_DECODE_CONFIG = DECODE_CONFIG_ARGB_8888;
+
     // Default disk cache size
     protected static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
+    protected static final int DEFAULT_DISK_CACHE_MAX_ITEMS = DiskLruCache.DEFAULT_MAX_ITEM_COUNT;
 
     // Compression settings when writing images to disk cache
     protected static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
@@ -29,12 +46,20 @@ public abstract class ImageCacheParams {
     protected static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     protected static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     protected static final boolean DEFAULT_CLEAR_DISK_CACHE_ON_START = false;
+    protected static final boolean DEFAULT_DISK_CACHE_SLAB_STORE_ENABLED = false;
     
 
     public String uniqueName;
 
     public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
+    public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
+    // デコード前の画像データを持つメモリキャッシュ。ディスクキャッシュの前に引く
+    public int encodedMemCacheSize = DEFAULT_ENCODED_MEM_CACHE_SIZE;
     public long diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+    public int diskCacheMaxItems = DEFAULT_DISK_CACHE_MAX_ITEMS;
+    public int diskCacheEvictionPolicy = DiskLruCache.EVICTION_LRU;
+
+    public int decodeConfig = DEFAULT_DECODE_CONFIG;
 
     public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
     public int compressQuality = DEFAULT_COMPRESS_QUALITY;
@@ -43,6 +68,8 @@ public abstract class ImageCacheParams {
     public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
 
     public boolean clearDiskCacheOnStart = DEFAULT_CLEAR_DISK_CACHE_ON_START;
+    // 小さなエントリをまとめて大きなファイルに入れる
+    public boolean diskCacheSlabStoreEnabled = DEFAULT_DISK_CACHE_SLAB_STORE_ENABLED;
     public String cacheFilenamePrefix = CACHE_FILENAME_PREFIX;
     public int memoryClass = 0;
 
@@ -59,6 +86,7 @@ public abstract class ImageCacheParams {
                     .getSystemService(Activity.ACTIVITY_SERVICE);
             memoryClass = activityManager.getMemoryClass();
             memCacheSize = memoryClass / DEFAULT_MEM_CACHE_DIVIDER * 1024 * 1024;
+            bitmapPoolSize = memCacheSize / DEFAULT_BITMAP_POOL_DIVIDER;
         }
     }
 
@@ -75,6 +103,7 @@ public abstract class ImageCacheParams {
             this.uniqueName = uniqueName;
             memoryClass = 16;
             memCacheSize = memoryClass / DEFAULT_MEM_CACHE_DIVIDER * 1024 * 1024;
+            bitmapPoolSize = memCacheSize / DEFAULT_BITMAP_POOL_DIVIDER;
         }
     }
 }
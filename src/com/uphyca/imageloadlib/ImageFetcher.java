@@ -1,25 +1,31 @@
 package com.uphyca.imageloadlib;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.WeakHashMap;
 
-import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
-import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.ImageView;
 
@@ -27,6 +33,7 @@ public abstract class ImageFetcher {
     private static final String TAG = ImageFetcher.class.getSimpleName();
 
     public static final int IO_BUFFER_SIZE_BYTES = 1 * 1024; // 1KB
+    private static final int DOWNLOAD_BUFFER_SIZE_BYTES = 16 * 1024; // 16KB
 
     private static final int DEFAULT_MAX_THUMBNAIL_BYTES = 70 * 1024; // 70KB
     private static final int DEFAULT_MAX_IMAGE_HEIGHT = 1024;
@@ -34,6 +41,19 @@ public abstract class ImageFetcher {
 
     private static final int DEFAULT_HTTP_CACHE_SIZE = 5 * 1024 * 1024; // 5MB
     private static final String DEFAULT_HTTP_CACHE_DIR = "http";
+    private static final String DOWNLOAD_TEMP_FILE_PREFIX = "bitmap";
+    private static final String DOWNLOAD_TEMP_FILE_SUFFIX = ".tmp";
+    // ファイルシステムの更新時刻の粒度より十分大きく取る
+    private static final long TEMP_FILE_SWEEP_MARGIN_MILLIS = 10 * 1000L;
+
+    private static final int MAX_REQUESTS_PER_HOST = 4;
+
+    /** Prefetch into the disk cache only. */
+    public static final int PREFETCH_DISK = 0;
+    /** Prefetch into the disk cache and decode into the memory cache. */
+    public static final int PREFETCH_MEMORY = 1;
+    // 表示用のロードのためにスレッドを空けておく
+    private static final int MAX_RUNNING_PREFETCHES = 2;
 
     public static class ImageFetcherParams {
         public int mImageWidth = DEFAULT_MAX_IMAGE_WIDTH;
@@ -47,16 +67,64 @@ public abstract class ImageFetcher {
     private ImageFetcherParams mFetcherParams;
     private ImageCache mImageCache;
 
+    // 画像ロード専用のスケジューラ。全 ImageFetcher で共有する
+    private static final ImageLoadScheduler sScheduler = new ImageLoadScheduler();
+
+    // 接続を使い回す HTTP 層。全 ImageFetcher で共有する
+    private static final HttpTransport sTransport = new HttpTransport(MAX_REQUESTS_PER_HOST);
+
+    // これより前に作られた一時ファイルは前のプロセスが残したもの
+    private static final long sLoadedAt = System.currentTimeMillis();
+
+    // 残った一時ファイルの掃除を始めたディレクトリ名
+    private static final HashSet<String> sSweptTempDirs = new HashSet<String>();
+
+    // ダウンロード用のバッファはスレッドごとに使い回す
+    private static final ThreadLocal<byte[]> sDownloadBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DOWNLOAD_BUFFER_SIZE_BYTES];
+        }
+    };
+
+    // ImageView ごとに表示中のキャッシュ済み Bitmap。UI スレッドからのみ触る
+    private final WeakHashMap<ImageView, DisplayReference> mDisplayedBitmaps =
+            new WeakHashMap<ImageView, DisplayReference>();
+    // 参照そのものを強く持ち、ImageView が回収されたら mCollectedViews から表示を解放する
+    private final HashSet<DisplayReference> mDisplayReferences = new HashSet<DisplayReference>();
+    private final ReferenceQueue<ImageView> mCollectedViews = new ReferenceQueue<ImageView>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
     private final Hashtable<Integer, Bitmap> loadingBitmaps = new Hashtable<Integer, Bitmap>(2);
 
+    // 実行中のロード。UI スレッドからのみ触る
+    private final HashMap<String, BitmapWorkerTask> mInFlightTasks = new HashMap<String, BitmapWorkerTask>();
+
+    // 一時停止中は新しい段階を始めずにここで待たせる
+    private final ArrayList<BitmapWorkerTask> mPausedTasks = new ArrayList<BitmapWorkerTask>();
+    private volatile boolean mPaused;
+
+    // 開始待ちの先読み。実行中の数も同じロックで守る
+    private final LinkedList<PrefetchTask> mPrefetchQueue = new LinkedList<PrefetchTask>();
+    private int mRunningPrefetches;
+
+    // 再検証中のディスクキャッシュのキー
+    private final HashSet<String> mRevalidating = new HashSet<String>();
+
+    // ダウンロード中のディスクキャッシュのキー。表示用のロードと先読みで共有する
+    private final HashMap<String, SharedDownload> mDownloads = new HashMap<String, SharedDownload>();
+
     public ImageFetcher(Context context, ImageFetcherParams params) {
         mContext = context;
         mFetcherParams = params;
+        scheduleTempFileSweep();
     }
 
     public ImageFetcher(Context context) {
         mContext = context;
         mFetcherParams = new ImageFetcherParams();
+        scheduleTempFileSweep();
     }
 
     public void setImageCache(ImageCache cacheCallback) {
@@ -68,50 +136,402 @@ public abstract class ImageFetcher {
     }
     
     public void loadImage(String url, ImageView imageView, int resId, int reqWidth, int reqHeight) {
-        mFetcherParams.mImageHeight = reqHeight;
-        mFetcherParams.mImageWidth = reqWidth;
-        loadImage(url, imageView, resId);
+        loadImage(new ImageRequest(url, reqWidth, reqHeight), imageView, getLoadingBitmap(resId));
     }
 
     public void loadImage(String url, ImageView imageView, int resId) {
+        loadImage(new ImageRequest(url, mFetcherParams.mImageWidth, mFetcherParams.mImageHeight), imageView,
+                getLoadingBitmap(resId));
+    }
+
+    private Bitmap getLoadingBitmap(int resId) {
         if (!loadingBitmaps.containsKey(resId)) {
             // 複数回のデコードを防ぐため
             loadingBitmaps.put(resId, BitmapFactory.decodeResource(mContext.getResources(), resId));
         }
-        loadImage(url, imageView, loadingBitmaps.get(resId));
+        return loadingBitmaps.get(resId);
     }
 
-    private void loadImage(String url, ImageView imageView, Bitmap loadingBitmap) {
+    private void loadImage(ImageRequest request, ImageView imageView, Bitmap loadingBitmap) {
+        releaseCollectedViews();
+
         Bitmap bitmap = null;
 
         // キャッシュにあるかチェック
         if (mImageCache != null) {
-            bitmap = mImageCache.getBitmapFromMemCache(url);
+            bitmap = mImageCache.retainBitmapFromMemCache(request.memCacheKey);
+            if (bitmap != null && imageView == null) {
+                mImageCache.releaseDisplayedBitmap(bitmap);
+            }
         }
 
         if (bitmap != null && imageView != null) {
+            cancelPotentialWork(null, imageView);
             imageView.setImageBitmap(bitmap);
-
-        } else if (cancelPotentialWork(url, imageView)) {
-            final BitmapWorkerTask task = new BitmapWorkerTask(imageView);
-            final AsyncDrawable asyncDrawable = new AsyncDrawable(mContext.getResources(), loadingBitmap, task);
-            if(imageView != null) {
+            setDisplayedBitmap(imageView, bitmap);
+
+        } else if (cancelPotentialWork(request.memCacheKey, imageView)) {
+            // 同じ URL とサイズのロードが走っていればそれに相乗りする
+            BitmapWorkerTask task = mInFlightTasks.get(request.memCacheKey);
+            // 打ち切り済みのロードには相乗りできない
+            final boolean isNewTask = task == null || !task.attach(imageView);
+            if (isNewTask) {
+                task = new BitmapWorkerTask(request);
+                mInFlightTasks.put(request.memCacheKey, task);
+                task.attach(imageView);
+            }
+            if (imageView != null) {
+                final AsyncDrawable asyncDrawable = new AsyncDrawable(mContext.getResources(), loadingBitmap, task);
                 imageView.setImageDrawable(asyncDrawable);
+                setDisplayedBitmap(imageView, null);
+            }
+            if (isNewTask) {
+                task.start();
+            } else {
+                // 新しく表示された ImageView が待っているので優先する
+                sScheduler.reprioritize(task);
+            }
+        }
+    }
+
+    /**
+     * Holds back disk, network and decode work, e.g. while a list is flung.
+     * Images in the memory cache are still shown right away; other loads wait
+     * until {@link #resume()}.
+     */
+    public void pause() {
+        synchronized (mPausedTasks) {
+            mPaused = true;
+        }
+    }
+
+    /**
+     * Starts the loads held back since {@link #pause()}, except those whose
+     * ImageView has been recycled for another image in the meantime. Must be
+     * called on the UI thread.
+     */
+    public void resume() {
+        final BitmapWorkerTask[] tasks;
+        synchronized (mPausedTasks) {
+            mPaused = false;
+            tasks = mPausedTasks.toArray(new BitmapWorkerTask[mPausedTasks.size()]);
+            mPausedTasks.clear();
+        }
+        for (int i = 0; i < tasks.length; i++) {
+            final BitmapWorkerTask task = tasks[i];
+            if (!task.abandonIfUnwanted()) {
+                sScheduler.execute(task.mStage, task);
+            }
+        }
+        startPrefetches();
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Loads images nobody displays yet, e.g. the rows just below the visible
+     * part of a list, so that they are cached when they scroll into view.
+     * Prefetches run behind every load requested through loadImage, and only
+     * a few of them run at once. A load of an image that is being prefetched
+     * waits for the prefetch's download instead of starting another one.
+     * 
+     * @param urls
+     * @param reqWidth
+     * @param reqHeight
+     * @param target
+     *            {@link #PREFETCH_DISK} or {@link #PREFETCH_MEMORY}
+     * @return a handle to cancel the prefetches with
+     */
+    public Prefetch prefetch(Collection<String> urls, int reqWidth, int reqHeight, int target) {
+        final Prefetch prefetch = new Prefetch();
+        synchronized (mPrefetchQueue) {
+            for (String url : urls) {
+                final PrefetchTask task = new PrefetchTask(prefetch, new ImageRequest(url, reqWidth, reqHeight),
+                        target);
+                mPrefetchQueue.add(task);
+            }
+        }
+        startPrefetches();
+        return prefetch;
+    }
+
+    private void startPrefetches() {
+        while (true) {
+            final PrefetchTask task;
+            synchronized (mPrefetchQueue) {
+                if (mPaused || mRunningPrefetches >= MAX_RUNNING_PREFETCHES || mPrefetchQueue.isEmpty()) {
+                    return;
+                }
+                task = mPrefetchQueue.removeFirst();
+                if (task.mPrefetch.isCancelled()) {
+                    continue;
+                }
+                mRunningPrefetches++;
+            }
+            sScheduler.setLowestPriority(task);
+            task.moveTo(ImageLoadScheduler.STAGE_DISK);
+        }
+    }
+
+    private void onPrefetchFinished() {
+        synchronized (mPrefetchQueue) {
+            mRunningPrefetches--;
+        }
+        startPrefetches();
+    }
+
+    /**
+     * A group of prefetches started by one call to
+     * {@link ImageFetcher#prefetch(Collection, int, int, int)}.
+     */
+    public final class Prefetch {
+        private volatile boolean mCancelled;
+
+        private Prefetch() {
+        }
+
+        /**
+         * Drops every prefetch of the group that has not finished yet. A
+         * download already in progress is completed.
+         */
+        public void cancel() {
+            mCancelled = true;
+            // 開始済みのものは次の段階に進む前に終わる
+            synchronized (mPrefetchQueue) {
+                for (Iterator<PrefetchTask> it = mPrefetchQueue.iterator(); it.hasNext();) {
+                    if (it.next().mPrefetch == this) {
+                        it.remove();
+                    }
+                }
             }
-            executeTaskInParallel(url, task);
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
         }
     }
 
-    protected abstract void executeTaskInParallel(String url, BitmapWorkerTask task);
+    /**
+     * Loads one image of a prefetch into the disk cache and, if requested,
+     * the memory cache. Moves through the same stages as a visible load, at
+     * the lowest priority.
+     */
+    private class PrefetchTask extends ImageLoadScheduler.Job {
+        private final Prefetch mPrefetch;
+        private final ImageRequest mRequest;
+        private final int mTarget;
+        private int mStage;
+        private DiskLruCache.Source mSource;
+
+        private final Runnable mRetryFromDisk = new Runnable() {
+            @Override
+            public void run() {
+                moveTo(ImageLoadScheduler.STAGE_DISK);
+            }
+        };
+
+        PrefetchTask(Prefetch prefetch, ImageRequest request, int target) {
+            mPrefetch = prefetch;
+            mRequest = request;
+            mTarget = target;
+        }
+
+        private void moveTo(int stage) {
+            mStage = stage;
+            sScheduler.execute(stage, this);
+        }
 
-    private static boolean cancelPotentialWork(Object data, ImageView imageView) {
+        @Override
+        public void run() {
+            if (mPrefetch.isCancelled() || mImageCache == null) {
+                finish();
+                return;
+            }
+
+            switch (mStage) {
+            case ImageLoadScheduler.STAGE_DISK:
+                if (mTarget == PREFETCH_MEMORY && mImageCache.getBitmapFromMemCache(mRequest.memCacheKey) != null) {
+                    finish();
+                    return;
+                }
+                mSource = mImageCache.getSourceFromDiskCache(mRequest);
+                if (mSource != null) {
+                    if (mTarget == PREFETCH_MEMORY) {
+                        moveTo(ImageLoadScheduler.STAGE_DECODE);
+                    } else {
+                        finish();
+                    }
+                } else if (mImageCache.hasDiskCache() || mTarget == PREFETCH_MEMORY) {
+                    if (claimDownload(mRequest, this, mRetryFromDisk)) {
+                        moveTo(ImageLoadScheduler.STAGE_NETWORK);
+                    }
+                } else {
+                    finish();
+                }
+                break;
+
+            case ImageLoadScheduler.STAGE_NETWORK:
+                mSource = download(mRequest);
+                releaseDownload(mRequest, this);
+                if (mSource != null && mTarget == PREFETCH_MEMORY) {
+                    moveTo(ImageLoadScheduler.STAGE_DECODE);
+                } else {
+                    finish();
+                }
+                break;
+
+            case ImageLoadScheduler.STAGE_DECODE:
+                final Bitmap bitmap = decodeSource(mSource, mRequest, mImageCache.getBitmapPool(),
+                        mImageCache.getDecodeConfig());
+                if (!mImageCache.hasDiskCache()) {
+                    // キャッシュに入らない一時ファイル
+                    mSource.file.delete();
+                }
+                if (bitmap != null) {
+                    mImageCache.addBitmapToMemCache(mRequest, bitmap);
+                }
+                finish();
+                break;
+            }
+        }
+
+        private void finish() {
+            releaseDownload(mRequest, this);
+            onPrefetchFinished();
+        }
+    }
+
+    /**
+     * Lets the loads of one disk cache entry share one download, whether they
+     * are visible loads or prefetches. The first load that misses the disk
+     * cache downloads; the others read the disk cache again once it is done.
+     * 
+     * @param request
+     * @param job
+     *            the load that missed the disk cache
+     * @param retry
+     *            run after the download of another load has finished
+     * @return true if the job has to download the entry itself
+     */
+    private boolean claimDownload(ImageRequest request, ImageLoadScheduler.Job job, Runnable retry) {
+        if (mImageCache == null || !mImageCache.hasDiskCache()) {
+            // 一時ファイルは他のロードと共有できない
+            return true;
+        }
+        final String key = request.getDiskKey();
+        synchronized (mDownloads) {
+            final SharedDownload download = mDownloads.get(key);
+            if (download == null) {
+                mDownloads.put(key, new SharedDownload(job));
+                return true;
+            }
+            download.waiters.add(retry);
+            if (download.owner instanceof PrefetchTask && job instanceof BitmapWorkerTask) {
+                // 表示を待っているので先読みを表示用のロードとして扱う
+                sScheduler.reprioritize(download.owner);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Ends the download the job claimed, if any, and lets the loads waiting for
+     * it read the disk cache again.
+     */
+    private void releaseDownload(ImageRequest request, ImageLoadScheduler.Job job) {
+        final SharedDownload download;
+        synchronized (mDownloads) {
+            final String key = request.getDiskKey();
+            download = mDownloads.get(key);
+            if (download == null || download.owner != job) {
+                return;
+            }
+            mDownloads.remove(key);
+        }
+        for (int i = 0; i < download.waiters.size(); i++) {
+            download.waiters.get(i).run();
+        }
+    }
+
+    /**
+     * A running download of a disk cache entry and the loads waiting for it.
+     */
+    private static final class SharedDownload {
+        final ImageLoadScheduler.Job owner;
+        final ArrayList<Runnable> waiters = new ArrayList<Runnable>(1);
+
+        SharedDownload(ImageLoadScheduler.Job owner) {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Remembers which cached bitmap an ImageView shows and releases the one it
+     * showed before, so that the cache only reuses bitmaps no view shows. The
+     * caller hands over one display reference of the bitmap.
+     */
+    private void setDisplayedBitmap(ImageView imageView, Bitmap bitmap) {
+        final DisplayReference previous;
+        if (bitmap != null) {
+            final DisplayReference reference = new DisplayReference(imageView, bitmap, mCollectedViews);
+            mDisplayReferences.add(reference);
+            previous = mDisplayedBitmaps.put(imageView, reference);
+        } else {
+            previous = mDisplayedBitmaps.remove(imageView);
+        }
+        if (previous != null && mDisplayReferences.remove(previous) && mImageCache != null) {
+            mImageCache.releaseDisplayedBitmap(previous.bitmap);
+        }
+    }
+
+    /**
+     * Releases the bitmaps shown by ImageViews that were garbage collected
+     * without being given another image, e.g. those of a finished activity.
+     */
+    private void releaseCollectedViews() {
+        DisplayReference reference;
+        while ((reference = (DisplayReference) mCollectedViews.poll()) != null) {
+            if (mDisplayReferences.remove(reference) && mImageCache != null) {
+                mImageCache.releaseDisplayedBitmap(reference.bitmap);
+            }
+        }
+    }
+
+    /**
+     * The cached bitmap an ImageView shows, holding one display reference of
+     * it until the view shows something else or is garbage collected.
+     */
+    private static final class DisplayReference extends WeakReference<ImageView> {
+        private final Bitmap bitmap;
+
+        private DisplayReference(ImageView imageView, Bitmap bitmap, ReferenceQueue<ImageView> queue) {
+            super(imageView, queue);
+            this.bitmap = bitmap;
+        }
+    }
+
+    /**
+     * Detaches the ImageView from the load it is currently waiting for, unless
+     * that load is the requested one. The load itself is only cancelled once
+     * no ImageView is waiting for it anymore.
+     * 
+     * @param requestKey
+     *            the key of the new request, or null to always detach
+     * @param imageView
+     * @return true if a load has to be attached to the ImageView
+     */
+    private boolean cancelPotentialWork(String requestKey, ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
 
         if (bitmapWorkerTask != null) {
-            final Object bitmapData = bitmapWorkerTask.data;
-            if (bitmapData == null || !bitmapData.equals(data)) {
-                // 以前のタスクをキャンセル
-                bitmapWorkerTask.cancel(true);
+            if (requestKey == null || !requestKey.equals(bitmapWorkerTask.mRequest.memCacheKey)) {
+                // 以前のタスクから外れる。誰も待っていなければキャンセル
+                if (!bitmapWorkerTask.detach(imageView)) {
+                    bitmapWorkerTask.cancel();
+                    removeInFlightTask(bitmapWorkerTask);
+                }
             } else {
                 // 同じタスクがすでに走っているので、このタスクは実行しない
                 return false;
@@ -121,6 +541,12 @@ public abstract class ImageFetcher {
         return true;
     }
 
+    private void removeInFlightTask(BitmapWorkerTask task) {
+        if (mInFlightTasks.get(task.mRequest.memCacheKey) == task) {
+            mInFlightTasks.remove(task.mRequest.memCacheKey);
+        }
+    }
+
     private static BitmapWorkerTask getBitmapWorkerTask(ImageView imageView) {
         if (imageView != null) {
             final Drawable drawable = imageView.getDrawable();
@@ -146,81 +572,442 @@ public abstract class ImageFetcher {
         }
     }
 
-    class BitmapWorkerTask extends AsyncTask<String, Void, Bitmap> {
-        private Object data;
-        private final WeakReference<ImageView> mImageViewReference;
+    /**
+     * Loads one URL at one target size on behalf of every ImageView that
+     * requested it while the load was running. The load moves through the
+     * disk, network and decode stages of the scheduler and delivers the result
+     * on the UI thread.
+     */
+    class BitmapWorkerTask extends ImageLoadScheduler.Job {
+        private final ImageRequest mRequest;
+        private final String data;
+        private final ArrayList<WeakReference<ImageView>> mImageViewReferences =
+                new ArrayList<WeakReference<ImageView>>(1);
+        // ImageView なしで要求されたロードは最後まで実行する
+        private boolean mHasDetachedSubscriber;
+        // 打ち切りが決まった後は相乗りさせない。mImageViewReferences のロックで守る
+        private boolean mAbandoned;
+
+        private volatile boolean mCancelled;
+        private int mStage;
+        private DiskLruCache.Source mSource;
+        private Bitmap mSourceVariant;
+        private boolean mDownloaded;
+        private long mQueuedAt;
+
+        private final Runnable mRetryFromDisk = new Runnable() {
+            @Override
+            public void run() {
+                // 他のロードがダウンロードしたばかりなので、デコードできなくても取り直さない
+                mDownloaded = true;
+                moveTo(ImageLoadScheduler.STAGE_DISK);
+            }
+        };
 
-        public BitmapWorkerTask(ImageView imageView) {
-            mImageViewReference = new WeakReference<ImageView>(imageView);
+        public BitmapWorkerTask(ImageRequest request) {
+            mRequest = request;
+            data = request.url;
+        }
+
+        /**
+         * @return false if the load has already been given up, in which case
+         *         a new load has to be started
+         */
+        private boolean attach(ImageView imageView) {
+            synchronized (mImageViewReferences) {
+                if (mAbandoned) {
+                    return false;
+                }
+                if (imageView == null) {
+                    mHasDetachedSubscriber = true;
+                } else {
+                    mImageViewReferences.add(new WeakReference<ImageView>(imageView));
+                }
+                return true;
+            }
+        }
+
+        /**
+         * @return true if someone is still waiting for this load
+         */
+        private boolean detach(ImageView imageView) {
+            synchronized (mImageViewReferences) {
+                for (Iterator<WeakReference<ImageView>> it = mImageViewReferences.iterator(); it.hasNext();) {
+                    final ImageView view = it.next().get();
+                    if (view == null || view == imageView) {
+                        it.remove();
+                    }
+                }
+                return hasSubscriber();
+            }
+        }
+
+        private boolean hasSubscriber() {
+            synchronized (mImageViewReferences) {
+                if (mHasDetachedSubscriber) {
+                    return true;
+                }
+                for (int i = 0; i < mImageViewReferences.size(); i++) {
+                    if (isAttached(mImageViewReferences.get(i).get())) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        private void start() {
+            sScheduler.bumpPriority(this);
+            moveTo(ImageLoadScheduler.STAGE_DISK);
+        }
+
+        /**
+         * Cancels the load. If it is waiting in a queue it is removed before it
+         * starts and given up right away.
+         */
+        private void cancel() {
+            mCancelled = true;
+            if (sScheduler.remove(this)) {
+                // run() はもう呼ばれないので、ダウンロードの待ち手や保持した画像をここで手放す
+                synchronized (mImageViewReferences) {
+                    mAbandoned = true;
+                }
+                abandon();
+            }
+        }
+
+        private void moveTo(int stage) {
+            mStage = stage;
+            mQueuedAt = ImageLoadMetrics.startTimer();
+            synchronized (mPausedTasks) {
+                if (mPaused) {
+                    mPausedTasks.add(this);
+                    return;
+                }
+            }
+            sScheduler.execute(stage, this);
+        }
+
+        /**
+         * Gives the load up if it was cancelled or nobody waits for it anymore.
+         * The decision is made under the subscriber lock, so a view can not
+         * attach to a load that is being given up.
+         * 
+         * @return true if the load was given up
+         */
+        private boolean abandonIfUnwanted() {
+            synchronized (mImageViewReferences) {
+                if (!mCancelled && hasSubscriber()) {
+                    return false;
+                }
+                mAbandoned = true;
+            }
+            abandon();
+            return true;
+        }
+
+        /**
+         * Ends a load nobody waits for anymore without running its next stage.
+         */
+        private void abandon() {
+            releaseDownload(mRequest, this);
+            if (mSourceVariant != null && mImageCache != null) {
+                mImageCache.releaseDisplayedBitmap(mSourceVariant);
+                mSourceVariant = null;
+            }
+            finish(null);
         }
 
-        // バックグラウンドで画像をデコード
         @Override
-        protected Bitmap doInBackground(String... params) {
-            data = params[0];
-            final String dataString = String.valueOf(data);
-            Bitmap bitmap = null;
+        public void run() {
+            ImageLoadMetrics.stopTimer(ImageLoadMetrics.STAGE_QUEUE_WAIT, mQueuedAt);
+
+            // 再利用された ImageView のためのロードは始めない
+            if (abandonIfUnwanted()) {
+                return;
+            }
+
+            switch (mStage) {
+            case ImageLoadScheduler.STAGE_DISK:
+                runDiskStage();
+                break;
+            case ImageLoadScheduler.STAGE_NETWORK:
+                runNetworkStage();
+                break;
+            case ImageLoadScheduler.STAGE_DECODE:
+                runDecodeStage();
+                break;
+            }
+        }
 
-            // ディスクキャッシュにあるかチェック
-            if (mImageCache != null && !isCancelled() && getAttachedImageView() != null) {
-                bitmap = mImageCache.getBitmapFromDiskCache(dataString);
+        // ディスクキャッシュにあるかチェック
+        private void runDiskStage() {
+            if (mImageCache != null) {
+                // より大きいサイズがメモリにあれば縮小して使う
+                mSourceVariant = mImageCache.retainLargerVariantFromMemCache(data, mRequest.width, mRequest.height);
+                if (mSourceVariant != null) {
+                    moveTo(ImageLoadScheduler.STAGE_DECODE);
+                    return;
+                }
+                final long start = ImageLoadMetrics.startTimer();
+                mSource = mImageCache.getSourceFromDiskCache(mRequest);
+                ImageLoadMetrics.stopTimer(ImageLoadMetrics.STAGE_DISK_READ, start);
+                if (mSource != null) {
+                    // 古いエントリもそのまま表示し、裏で再検証する
+                    final DiskLruCache.Validators validators = mImageCache.getDiskCacheValidators(mRequest);
+                    if (validators != null && validators.isStale(System.currentTimeMillis())) {
+                        revalidate(mRequest, validators);
+                    }
+                }
+            }
+            if (mSource != null) {
+                moveTo(ImageLoadScheduler.STAGE_DECODE);
+            } else if (claimDownload(mRequest, this, mRetryFromDisk)) {
+                moveTo(ImageLoadScheduler.STAGE_NETWORK);
             }
+        }
 
-            if (bitmap == null) {
-                bitmap = processBitmap(params[0]);
+        private void runNetworkStage() {
+            mDownloaded = true;
+            final long start = ImageLoadMetrics.startTimer();
+            mSource = download(mRequest);
+            releaseDownload(mRequest, this);
+            ImageLoadMetrics.stopTimer(ImageLoadMetrics.STAGE_NETWORK, start);
+            ImageLoadMetrics.count(mSource != null ? ImageLoadMetrics.NETWORK_FETCH
+                    : ImageLoadMetrics.NETWORK_FAILURE);
+            if (mSource == null) {
+                finish(null);
+            } else {
+                moveTo(ImageLoadScheduler.STAGE_DECODE);
+            }
+        }
+
+        // バックグラウンドで画像をデコード
+        private void runDecodeStage() {
+            if (mSourceVariant != null) {
+                runScaleStage();
+                return;
+            }
+
+            final BitmapPool bitmapPool = mImageCache != null ? mImageCache.getBitmapPool() : null;
+            final int decodeConfig = mImageCache != null ? mImageCache.getDecodeConfig()
+                    : ImageCacheParams.DEFAULT_DECODE_CONFIG;
+            final long start = ImageLoadMetrics.startTimer();
+            final Bitmap bitmap = decodeSource(mSource, mRequest, bitmapPool, decodeConfig);
+            ImageLoadMetrics.stopTimer(ImageLoadMetrics.STAGE_DECODE, start);
+            if (mImageCache == null || !mImageCache.hasDiskCache()) {
+                // キャッシュに入らない一時ファイル
+                mSource.file.delete();
+            }
+
+            if (bitmap == null && !mDownloaded && mImageCache != null) {
+                // デコードできないエントリは捨ててダウンロードし直す
+                mImageCache.removeFromDiskCache(mRequest);
+                mSource = null;
+                moveTo(ImageLoadScheduler.STAGE_NETWORK);
+                return;
             }
 
             if (bitmap != null && mImageCache != null) {
-                mImageCache.addBitmapToCache(dataString, bitmap);
+                // 配信が終わるまで再利用されないようにする
+                mImageCache.retainDisplayedBitmap(bitmap);
+                mImageCache.addBitmapToMemCache(mRequest, bitmap);
+            }
+            finish(bitmap);
+        }
+
+        /**
+         * Scale a larger variant that is already in memory down to the request
+         * instead of going back to the disk. The variant was retained when it
+         * was found; that reference is handed over to the delivery.
+         */
+        private void runScaleStage() {
+            final Bitmap variant = mSourceVariant;
+            mSourceVariant = null;
+            final Bitmap bitmap = BitmapDecoder.scaleToCover(variant, mRequest.width, mRequest.height,
+                    mImageCache.getBitmapPool());
+            if (bitmap == variant) {
+                finish(variant);
+                return;
             }
 
-            return bitmap;
+            mImageCache.releaseDisplayedBitmap(variant);
+            mImageCache.retainDisplayedBitmap(bitmap);
+            mImageCache.addBitmapToMemCache(mRequest, bitmap);
+            finish(bitmap);
         }
 
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
+        private void finish(final Bitmap bitmap) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onPostExecute(bitmap);
+                }
+            });
+        }
+
+        private void onPostExecute(Bitmap bitmap) {
+            removeInFlightTask(this);
+
             // キャンセルされていたらなにもしない
-            if (isCancelled()) {
-                bitmap = null;
+            if (bitmap != null && !mCancelled) {
+                synchronized (mImageViewReferences) {
+                    for (int i = 0; i < mImageViewReferences.size(); i++) {
+                        final ImageView imageView = mImageViewReferences.get(i).get();
+                        if (isAttached(imageView)) {
+                            setImageBitmap(imageView, bitmap);
+                            if (mImageCache != null) {
+                                mImageCache.retainDisplayedBitmap(bitmap);
+                                setDisplayedBitmap(imageView, bitmap);
+                            }
+                        }
+                    }
+                    mImageViewReferences.clear();
+                }
             }
 
-            final ImageView imageView = getAttachedImageView();
-            if (bitmap != null && imageView != null) {
-                setImageBitmap(imageView, bitmap);
+            if (bitmap != null && mImageCache != null) {
+                mImageCache.releaseDisplayedBitmap(bitmap);
             }
         }
 
-        private ImageView getAttachedImageView() {
-            final ImageView imageView = mImageViewReference.get();
-            final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
+        private boolean isAttached(ImageView imageView) {
+            return imageView != null && this == getBitmapWorkerTask(imageView);
+        }
+    }
 
-            if (this == bitmapWorkerTask && imageView != null) {
-                return imageView;
+    /**
+     * Queues a conditional request for a stale disk cache entry, unless one is
+     * already running for it.
+     */
+    private void revalidate(ImageRequest request, DiskLruCache.Validators validators) {
+        synchronized (mRevalidating) {
+            if (!mRevalidating.add(request.getDiskKey())) {
+                return;
             }
+        }
+        final RevalidateTask task = new RevalidateTask(request, validators);
+        // 表示のためのロードをすべて先に通す
+        sScheduler.setLowestPriority(task);
+        sScheduler.execute(ImageLoadScheduler.STAGE_NETWORK, task);
+    }
+
+    /**
+     * Revalidates a stale disk cache entry in the background. A 304 only
+     * refreshes the stored validators; a new body replaces the entry and the
+     * decoded copies in memory, so the next load shows the new image. Runs
+     * at the lowest priority so that it never delays visible loads.
+     */
+    private class RevalidateTask extends ImageLoadScheduler.Job {
+        private final ImageRequest mRequest;
+        private final DiskLruCache.Validators mValidators;
 
-            return null;
+        RevalidateTask(ImageRequest request, DiskLruCache.Validators validators) {
+            mRequest = request;
+            mValidators = validators;
         }
+
+        @Override
+        public void run() {
+            ImageLoadMetrics.count(ImageLoadMetrics.REVALIDATION);
+            DiskLruCache.Editor editor = null;
+            try {
+                editor = mImageCache.editDiskCache(mRequest);
+                if (editor == null) {
+                    return;
+                }
+                final DownloadResult result = downloadUrlToStream(mRequest.url, mValidators,
+                        editor.newOutputStream());
+                if (result.status == DownloadResult.NOT_MODIFIED) {
+                    ImageLoadMetrics.count(ImageLoadMetrics.NOT_MODIFIED);
+                    mImageCache.updateDiskCacheValidators(mRequest,
+                            HttpCacheHeaders.merge(mValidators, result.validators, System.currentTimeMillis()));
+                } else if (result.status == DownloadResult.OK) {
+                    editor.setValidators(result.validators);
+                    editor.commit();
+                    mImageCache.removeFromMemCache(mRequest.url);
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "Error in revalidate - " + e);
+            } finally {
+                if (editor != null) {
+                    editor.abortUnlessCommitted();
+                }
+                synchronized (mRevalidating) {
+                    mRevalidating.remove(mRequest.getDiskKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * What a download returned besides the body.
+     */
+    static final class DownloadResult {
+        static final int FAILED = 0;
+        static final int OK = 1;
+        static final int NOT_MODIFIED = 2;
+
+        int status = FAILED;
+        DiskLruCache.Validators validators;
     }
 
-    private Bitmap processBitmap(String url) {
-        final File f = downloadBitmapToFile(mContext, url, mFetcherParams.mHttpCacheDir);
-        if (f != null) {
-            // Return a sampled down version
-            final Bitmap bitmap = decodeSampledBitmapFromFile(f.toString(), mFetcherParams.mImageWidth,
-                    mFetcherParams.mImageHeight);
-            f.delete();
-            return bitmap;
+    /**
+     * Download the original bytes of an image straight into a disk cache
+     * entry, so they are written once and never re-encoded.
+     * 
+     * @param request
+     * @return the stored bytes, or null if the disk cache is disabled or the
+     *         download failed
+     */
+    private DiskLruCache.Source downloadBitmapToCache(ImageRequest request) {
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = mImageCache.editDiskCache(request);
+            if (editor == null) {
+                return null;
+            }
+            final DownloadResult result = downloadUrlToStream(request.url, null, editor.newOutputStream());
+            if (result.status == DownloadResult.OK) {
+                editor.setValidators(result.validators);
+                return mImageCache.addEncodedBytesToCache(request, editor.commitSource());
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in downloadBitmapToCache - " + e);
+        } finally {
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
         }
-        
         return null;
     }
 
-    private static void disableConnectionReuseIfNecessary() {
-        // HTTP connection reuse which was buggy pre-froyo
-        // http://android-developers.blogspot.com/2011/09/androids-http-clients.html
-        if (!Utils.hasFroyo()) {
-            System.setProperty("http.keepAlive", "false");
+    /**
+     * Download the original bytes of an image into the disk cache, or into a
+     * temporary file that the caller deletes if there is no disk cache.
+     * 
+     * @param request
+     * @return the downloaded bytes, or null if the download failed
+     */
+    private DiskLruCache.Source download(ImageRequest request) {
+        if (mImageCache != null && mImageCache.hasDiskCache()) {
+            return downloadBitmapToCache(request);
+        }
+        final File file = downloadBitmapToFile(mContext, request.url, mFetcherParams.mHttpCacheDir);
+        return file != null ? new DiskLruCache.Source(file, null) : null;
+    }
+
+    /**
+     * Decode the stored bytes of an image sampled down to the request.
+     */
+    private static Bitmap decodeSource(DiskLruCache.Source source, ImageRequest request, BitmapPool bitmapPool,
+            int decodeConfig) {
+        if (source.file != null) {
+            return BitmapDecoder.decodeSampledBitmapFromFile(source.file.toString(), request.width, request.height,
+                    bitmapPool, decodeConfig);
         }
+        return BitmapDecoder.decodeSampledBitmapFromByteArray(source.bytes, request.width, request.height,
+                bitmapPool, decodeConfig);
     }
 
     private static File downloadBitmapToFile(Context context, String urlString, String uniqueName) {
@@ -230,42 +1017,25 @@ public abstract class ImageFetcher {
             cacheDir.mkdir();
         }
 
-        disableConnectionReuseIfNecessary();
-        HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        InputStream in = null;
-
+        OutputStream out = null;
         try {
-            final File tempFile = File.createTempFile("bitmap", null, cacheDir);
-
-            final URL url = new URL(urlString);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            if (urlConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                return null;
-            }
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE_BYTES);
-            out = new BufferedOutputStream(new FileOutputStream(tempFile), IO_BUFFER_SIZE_BYTES);
-
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+            final File tempFile = File.createTempFile(DOWNLOAD_TEMP_FILE_PREFIX, DOWNLOAD_TEMP_FILE_SUFFIX, cacheDir);
+            out = new FileOutputStream(tempFile);
+            final boolean result = downloadUrlToStream(urlString, null, out).status == DownloadResult.OK;
+            out.close();
+            out = null;
+            if (result) {
+                return tempFile;
             }
-
-            return tempFile;
+            tempFile.delete();
 
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadBitmap - " + e);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
             try {
                 if (out != null) {
                     out.close();
                 }
-                if (in != null) {
-                    in.close();
-                }
             } catch (final IOException e) {
                 Log.e(TAG, "Error in downloadBitmap - " + e);
             }
@@ -274,6 +1044,134 @@ public abstract class ImageFetcher {
         return null;
     }
 
+    /**
+     * Deletes, behind every load, the download temp files a previous process
+     * left in the download directory, once per process. They are normally
+     * deleted right after decoding, but not if the process dies in between,
+     * and they stay behind whether or not the disk cache is used now.
+     */
+    private void scheduleTempFileSweep() {
+        final String uniqueName = mFetcherParams.mHttpCacheDir;
+        synchronized (sSweptTempDirs) {
+            if (!sSweptTempDirs.add(uniqueName)) {
+                return;
+            }
+        }
+        final Context context = mContext;
+        final ImageLoadScheduler.Job sweep = new ImageLoadScheduler.Job() {
+            @Override
+            public void run() {
+                // ディレクトリを決めるのにもストレージに触るので、UI スレッドではやらない
+                sweepTempFiles(DiskLruCache.getDiskCacheDir(context, uniqueName));
+            }
+        };
+        sScheduler.setLowestPriority(sweep);
+        sScheduler.execute(ImageLoadScheduler.STAGE_DISK, sweep);
+    }
+
+    private static void sweepTempFiles(File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long createdBefore = sLoadedAt - TEMP_FILE_SWEEP_MARGIN_MILLIS;
+        int sweptFiles = 0;
+        long sweptBytes = 0;
+        for (int i = 0; i < files.length; i++) {
+            final File file = files[i];
+            final String name = file.getName();
+            if (name.startsWith(DOWNLOAD_TEMP_FILE_PREFIX) && name.endsWith(DOWNLOAD_TEMP_FILE_SUFFIX)
+                    && file.lastModified() < createdBefore) {
+                final long length = file.length();
+                if (file.delete()) {
+                    sweptFiles++;
+                    sweptBytes += length;
+                }
+            }
+        }
+        ImageLoadMetrics.count(ImageLoadMetrics.DISK_SWEPT_FILES, sweptFiles);
+        ImageLoadMetrics.count(ImageLoadMetrics.DISK_SWEPT_BYTES, sweptBytes);
+    }
+
+    /**
+     * Download the response body of a URL to an output stream. The stream is
+     * not closed.
+     * 
+     * @param urlString
+     * @param validators
+     *            validators to make the request conditional on, or null
+     * @param out
+     * @return the result; OK only if the whole body was written
+     */
+    static DownloadResult downloadUrlToStream(String urlString, DiskLruCache.Validators validators,
+            OutputStream out) {
+        final DownloadResult result = new DownloadResult();
+        HttpTransport.Exchange exchange = null;
+
+        try {
+            final URL url = new URL(urlString);
+            exchange = sTransport.open(url);
+            final HttpURLConnection urlConnection = exchange.connection;
+            HttpCacheHeaders.addConditionalHeaders(urlConnection, validators);
+            final int responseCode = urlConnection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+                exchange.discardBody();
+                result.status = DownloadResult.NOT_MODIFIED;
+                result.validators = HttpCacheHeaders.parse(urlConnection, System.currentTimeMillis());
+                return result;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                exchange.discardBody();
+                return result;
+            }
+
+            final int contentLength = urlConnection.getContentLength();
+            final long copied = copyStream(exchange.getBody(), out);
+            ImageLoadMetrics.count(ImageLoadMetrics.BYTES_DOWNLOADED, copied);
+            if (contentLength >= 0 && copied != contentLength) {
+                // 途中で切れたレスポンスはキャッシュしない。接続も使い回さない
+                Log.e(TAG, "Error in downloadBitmap - expected " + contentLength + " bytes but got " + copied);
+                return result;
+            }
+            exchange.setBodyConsumed();
+            out.flush();
+
+            result.status = DownloadResult.OK;
+            result.validators = HttpCacheHeaders.parse(urlConnection, System.currentTimeMillis());
+            return result;
+
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in downloadBitmap - " + e);
+        } finally {
+            // 読み切った接続は切断せずに次のリクエストで使い回す
+            if (exchange != null) {
+                exchange.close();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Copy a stream in bulk through the calling thread's download buffer.
+     * Neither stream is closed.
+     * 
+     * @param in
+     * @param out
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    static long copyStream(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = sDownloadBuffer.get();
+        long count = 0;
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, n);
+            count += n;
+        }
+        return count;
+    }
+
     private void setImageBitmap(ImageView imageView, Bitmap bitmap) {
         // if (mFadeInBitmap) {
         // // Use TransitionDrawable to fade in.
@@ -291,38 +1189,6 @@ public abstract class ImageFetcher {
         // }
     }
 
-    private static synchronized Bitmap decodeSampledBitmapFromFile(String filePath, int reqWidth, int reqHeight) {
-
-        // inJustDecodeBounds=true で画像のサイズをチェック
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(filePath, options);
-
-        // inSampleSize を計算
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
-
-        // inSampleSize をセットしてデコード
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(filePath, options);
-    }
-
-    private static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-
-        // 画像の元サイズ
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
-
-        if (height > reqHeight || width > reqWidth) {
-            if (width > height) {
-                inSampleSize = Math.round((float) height / (float) reqHeight);
-            } else {
-                inSampleSize = Math.round((float) width / (float) reqWidth);
-            }
-        }
-        return inSampleSize;
-    }
-
     public static class ImageFetcherPostEclair extends ImageFetcher {
 
         public ImageFetcherPostEclair(Context context) {
@@ -332,17 +1198,6 @@ public abstract class ImageFetcher {
         public ImageFetcherPostEclair(Context context, ImageFetcherParams params) {
             super(context, params);
         }
-
-        @Override
-        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
-        protected void executeTaskInParallel(String url, BitmapWorkerTask task) {
-            if (Utils.hasHoneycomb()) {
-                // Execute in parallel
-                task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, url);
-            } else {
-                task.execute(url);
-            }
-        }
     }
     
     /**
@@ -357,10 +1212,5 @@ public abstract class ImageFetcher {
         public ImageFetcherPreEclair(Context context, ImageFetcherParams params) {
             super(context, params);
         }
-
-        @Override
-        protected void executeTaskInParallel(String url, BitmapWorkerTask task) {
-            task.execute(url);
-        }
     }
 }
@@ -0,0 +1,296 @@
+package com.uphyca.imageloadlib;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and stage latencies of the image loading pipeline. Metrics are off
+ * by default; while they are off, recording costs a single volatile read.
+ * Read the numbers with {@link #snapshot()}, or receive every event as it
+ * happens through a {@link Listener}.
+ */
+public final class ImageLoadMetrics {
+
+    // カウンタ
+    public static final int MEMORY_HIT = 0;
+    public static final int MEMORY_MISS = 1;
+    public static final int DISK_HIT = 2;
+    public static final int DISK_MISS = 3;
+    public static final int NETWORK_FETCH = 4;
+    public static final int NETWORK_FAILURE = 5;
+    public static final int BYTES_DOWNLOADED = 6;
+    public static final int MEMORY_EVICTION = 7;
+    public static final int DISK_EVICTION = 8;
+    public static final int DISK_EVICTION_BYTES = 9;
+    public static final int REVALIDATION = 10;
+    public static final int NOT_MODIFIED = 11;
+    /** HTTP connections handed back to the keep-alive pool. */
+    public static final int HTTP_CONNECTION_KEPT_ALIVE = 12;
+    /** HTTP connections closed after their request. */
+    public static final int HTTP_CONNECTION_CLOSED = 13;
+    /** Files deleted from the disk cache directories that no entry accounted for. */
+    public static final int DISK_SWEPT_FILES = 14;
+    /** Bytes of the files counted in {@link #DISK_SWEPT_FILES}. */
+    public static final int DISK_SWEPT_BYTES = 15;
+    /** Lookups answered by the memory cache of encoded image bytes. */
+    public static final int ENCODED_MEMORY_HIT = 16;
+    /** Lookups the memory cache of encoded image bytes could not answer. */
+    public static final int ENCODED_MEMORY_MISS = 17;
+    private static final int COUNTER_COUNT = 18;
+
+    private static final String[] COUNTER_NAMES = { "memoryHit", "memoryMiss", "diskHit", "diskMiss",
+            "networkFetch", "networkFailure", "bytesDownloaded", "memoryEviction", "diskEviction",
+            "diskEvictionBytes", "revalidation", "notModified",
+            "httpConnectionKeptAlive", "httpConnectionClosed", "diskSweptFiles", "diskSweptBytes",
+            "encodedMemoryHit", "encodedMemoryMiss" };
+
+    // 処理段階
+    /** Time a load waited in a scheduler queue before a stage started. */
+    public static final int STAGE_QUEUE_WAIT = 0;
+    /** Download of the original bytes. */
+    public static final int STAGE_NETWORK = 1;
+    /** Lookup of a disk cache entry. */
+    public static final int STAGE_DISK_READ = 2;
+    /** Read and decode of the original bytes, including the final scale. */
+    public static final int STAGE_DECODE = 3;
+    /** Compression of a bitmap written to the disk cache. */
+    public static final int STAGE_ENCODE = 4;
+    private static final int STAGE_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = { "queueWait", "network", "diskRead", "decode", "encode" };
+
+    // ヒストグラムの区間は 2 の累乗ミリ秒。最後の区間はそれ以上すべて
+    private static final int BUCKET_COUNT = 16;
+
+    /**
+     * Receives events as they are recorded, on the thread that records them.
+     * Implementations must be fast and thread safe.
+     */
+    public interface Listener {
+        /**
+         * @param counter
+         *            one of the counter constants
+         * @param delta
+         *            the amount added
+         */
+        void onCount(int counter, long delta);
+
+        /**
+         * @param stage
+         *            one of the STAGE_* constants
+         * @param millis
+         *            how long the stage took
+         */
+        void onStageCompleted(int stage, long millis);
+    }
+
+    private static volatile boolean sEnabled;
+    private static volatile Listener sListener;
+
+    private static final AtomicLongArray sCounters = new AtomicLongArray(COUNTER_COUNT);
+    private static final AtomicLongArray sLatencyBuckets = new AtomicLongArray(STAGE_COUNT * BUCKET_COUNT);
+    private static final AtomicLongArray sLatencyTotals = new AtomicLongArray(STAGE_COUNT);
+    private static volatile long sMemoryCacheSize;
+    private static volatile long sMemoryCacheMaxSize;
+
+    private ImageLoadMetrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * @param listener
+     *            the listener, or null to remove it
+     */
+    public static void setListener(Listener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Clears every counter and histogram.
+     */
+    public static void reset() {
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            sCounters.set(i, 0);
+        }
+        for (int i = 0; i < STAGE_COUNT * BUCKET_COUNT; i++) {
+            sLatencyBuckets.set(i, 0);
+        }
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sLatencyTotals.set(i, 0);
+        }
+    }
+
+    /**
+     * @return a copy of the current numbers
+     */
+    public static Snapshot snapshot() {
+        final long[] counters = new long[COUNTER_COUNT];
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            counters[i] = sCounters.get(i);
+        }
+        final long[] buckets = new long[STAGE_COUNT * BUCKET_COUNT];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = sLatencyBuckets.get(i);
+        }
+        final long[] totals = new long[STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            totals[i] = sLatencyTotals.get(i);
+        }
+        return new Snapshot(counters, buckets, totals, sMemoryCacheSize, sMemoryCacheMaxSize);
+    }
+
+    static void count(int counter) {
+        count(counter, 1);
+    }
+
+    static void count(int counter, long delta) {
+        if (!sEnabled) {
+            return;
+        }
+        sCounters.addAndGet(counter, delta);
+        final Listener listener = sListener;
+        if (listener != null) {
+            listener.onCount(counter, delta);
+        }
+    }
+
+    /**
+     * @return a start time for {@link #stopTimer(int, long)}, or 0 if metrics
+     *         are disabled
+     */
+    static long startTimer() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    static void stopTimer(int stage, long startNanos) {
+        if (startNanos == 0 || !sEnabled) {
+            return;
+        }
+        final long millis = (System.nanoTime() - startNanos) / 1000000L;
+        sLatencyBuckets.incrementAndGet(stage * BUCKET_COUNT + bucketOf(millis));
+        sLatencyTotals.addAndGet(stage, millis);
+        final Listener listener = sListener;
+        if (listener != null) {
+            listener.onStageCompleted(stage, millis);
+        }
+    }
+
+    static void setMemoryCacheSize(long size, long maxSize) {
+        if (!sEnabled) {
+            return;
+        }
+        sMemoryCacheSize = size;
+        sMemoryCacheMaxSize = maxSize;
+    }
+
+    private static int bucketOf(long millis) {
+        int bucket = 0;
+        while (millis > 0 && bucket < BUCKET_COUNT - 1) {
+            millis >>= 1;
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * The metrics at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] mCounters;
+        private final long[] mLatencyBuckets;
+        private final long[] mLatencyTotals;
+        private final long mMemoryCacheSize;
+        private final long mMemoryCacheMaxSize;
+
+        private Snapshot(long[] counters, long[] latencyBuckets, long[] latencyTotals, long memoryCacheSize,
+                long memoryCacheMaxSize) {
+            mCounters = counters;
+            mLatencyBuckets = latencyBuckets;
+            mLatencyTotals = latencyTotals;
+            mMemoryCacheSize = memoryCacheSize;
+            mMemoryCacheMaxSize = memoryCacheMaxSize;
+        }
+
+        /**
+         * @param counter
+         *            one of the counter constants
+         */
+        public long getCount(int counter) {
+            return mCounters[counter];
+        }
+
+        /**
+         * @return the bytes held by the memory cache when it last changed
+         */
+        public long getMemoryCacheSize() {
+            return mMemoryCacheSize;
+        }
+
+        public long getMemoryCacheMaxSize() {
+            return mMemoryCacheMaxSize;
+        }
+
+        /**
+         * @param stage
+         *            one of the STAGE_* constants
+         * @return how many times the stage was timed
+         */
+        public long getLatencyCount(int stage) {
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                count += mLatencyBuckets[stage * BUCKET_COUNT + i];
+            }
+            return count;
+        }
+
+        public long getLatencyMeanMillis(int stage) {
+            final long count = getLatencyCount(stage);
+            return count != 0 ? mLatencyTotals[stage] / count : 0;
+        }
+
+        /**
+         * @param stage
+         *            one of the STAGE_* constants
+         * @param percent
+         *            0 to 100
+         * @return the upper bound of the histogram bucket holding the
+         *         percentile, in milliseconds
+         */
+        public long getLatencyPercentileMillis(int stage, int percent) {
+            final long count = getLatencyCount(stage);
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = (count * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mLatencyBuckets[stage * BUCKET_COUNT + i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : 1L << i;
+                }
+            }
+            return 1L << BUCKET_COUNT;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("ImageLoadMetrics[");
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                sb.append(COUNTER_NAMES[i]).append('=').append(mCounters[i]).append(',');
+            }
+            sb.append("memoryCacheSize=").append(mMemoryCacheSize).append('/').append(mMemoryCacheMaxSize);
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                sb.append(',').append(STAGE_NAMES[i]).append("={n=").append(getLatencyCount(i)).append(",mean=")
+                        .append(getLatencyMeanMillis(i)).append("ms,p90=").append(getLatencyPercentileMillis(i, 90))
+                        .append("ms}");
+            }
+            return sb.append(']').toString();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.uphyca.imageloadlib;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * Runs image loads on thread pools dedicated to image loading instead of the
+ * process wide AsyncTask pool. Network, disk and decode work each have their
+ * own bounded pool so that slow downloads do not hold up disk hits, and in
+ * every pool the most recently requested job runs first.
+ */
+final class ImageLoadScheduler {
+
+    static final int STAGE_DISK = 0;
+    static final int STAGE_NETWORK = 1;
+    static final int STAGE_DECODE = 2;
+
+    private static final String[] STAGE_NAMES = { "disk", "network", "decode" };
+
+    private static final int DISK_POOL_SIZE = 2;
+    // ホストごとの同時リクエスト数は HttpTransport が制限する
+    private static final int NETWORK_POOL_SIZE = 6;
+    private static final int MAX_DECODE_POOL_SIZE = 8;
+    // デコードスレッド 1 本あたりに必要なヒープ
+    private static final long HEAP_BYTES_PER_DECODE_THREAD = 16 * 1024 * 1024; // 16MB
+    private static final long KEEP_ALIVE_SECONDS = 30L;
+
+    /**
+     * A unit of work run by the scheduler. A job may move through several
+     * stages; it is queued in at most one stage at a time.
+     */
+    abstract static class Job implements Runnable {
+        // 大きいほど先に実行する
+        private volatile long mPriority;
+    }
+
+    // 新しい要求ほど優先度を高くする
+    private static final Comparator<Runnable> PRIORITY_ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            final long l = ((Job) lhs).mPriority;
+            final long r = ((Job) rhs).mPriority;
+            return l > r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    private final AtomicLong mSequence = new AtomicLong();
+    private final ThreadPoolExecutor[] mExecutors = new ThreadPoolExecutor[STAGE_NAMES.length];
+
+    ImageLoadScheduler() {
+        final int decodePoolSize = getDecodePoolSize();
+        mExecutors[STAGE_DISK] = createExecutor(STAGE_DISK, DISK_POOL_SIZE);
+        mExecutors[STAGE_NETWORK] = createExecutor(STAGE_NETWORK, NETWORK_POOL_SIZE);
+        mExecutors[STAGE_DECODE] = createExecutor(STAGE_DECODE, decodePoolSize);
+    }
+
+    /**
+     * One decode thread per core, but no more than the heap can feed. The
+     * bytes each decode may allocate are further limited by
+     * {@link BitmapDecoder}.
+     */
+    private static int getDecodePoolSize() {
+        final Runtime runtime = Runtime.getRuntime();
+        final int byMemory = (int) (runtime.maxMemory() / HEAP_BYTES_PER_DECODE_THREAD);
+        final int byCores = runtime.availableProcessors();
+        return Math.max(1, Math.min(Math.min(byCores, byMemory), MAX_DECODE_POOL_SIZE));
+    }
+
+    private static ThreadPoolExecutor createExecutor(int stage, int poolSize) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(16, PRIORITY_ORDER), new StageThreadFactory(
+                        STAGE_NAMES[stage]));
+        allowCoreThreadTimeOut(executor);
+        return executor;
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private static void allowCoreThreadTimeOut(ThreadPoolExecutor executor) {
+        if (Utils.hasGingerbread()) {
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Marks the job as the most recently requested one.
+     */
+    void bumpPriority(Job job) {
+        job.mPriority = mSequence.incrementAndGet();
+    }
+
+    /**
+     * Ranks the job behind every requested job, e.g. for work nobody is
+     * waiting for yet. Such jobs run in the order they were ranked.
+     */
+    void setLowestPriority(Job job) {
+        job.mPriority = -mSequence.incrementAndGet();
+    }
+
+    /**
+     * Queues the job on a stage.
+     */
+    void execute(int stage, Job job) {
+        mExecutors[stage].execute(job);
+    }
+
+    /**
+     * Moves a job that is still waiting in a queue ahead of everything queued
+     * before it.
+     */
+    void reprioritize(Job job) {
+        for (int i = 0; i < mExecutors.length; i++) {
+            if (mExecutors[i].remove(job)) {
+                bumpPriority(job);
+                mExecutors[i].execute(job);
+                return;
+            }
+        }
+        bumpPriority(job);
+    }
+
+    /**
+     * Drops a job that has not started its current stage yet.
+     *
+     * @return true if the job was removed from a queue
+     */
+    boolean remove(Job job) {
+        for (int i = 0; i < mExecutors.length; i++) {
+            if (mExecutors[i].remove(job)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        StageThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ImageLoad-" + mName + " #" + mCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.uphyca.imageloadlib;
+
+/**
+ * What to load and at which size. Images are decoded to the requested size,
+ * but the memory cache key rounds it up to a size bucket, so that views of
+ * nearly the same size share one decoded bitmap instead of decoding the image
+ * again; a view may then get a bitmap a few pixels smaller than it asked for.
+ * The keys derived from the request are computed once and reused by every
+ * cache the request goes through.
+ */
+final class ImageRequest {
+
+    // この単位でサイズを切り上げる
+    private static final int SIZE_BUCKET_PX = 32;
+
+    final String url;
+    /** The size to decode to. */
+    final int width;
+    final int height;
+    final String memCacheKey;
+    // 最初にディスクを見るときにワーカースレッドで計算する
+    private volatile String mDiskKey;
+
+    ImageRequest(String url, int reqWidth, int reqHeight) {
+        this.url = url;
+        width = reqWidth > 0 ? reqWidth : SIZE_BUCKET_PX;
+        height = reqHeight > 0 ? reqHeight : SIZE_BUCKET_PX;
+        // 切り上げたサイズはキーにだけ使い、余分な画素はデコードしない
+        memCacheKey = ImageCache.createMemCacheKey(url, toSizeBucket(width), toSizeBucket(height));
+    }
+
+    /**
+     * @return the disk cache key of the url, see
+     *         {@link ImageCache#hashKeyForDisk(String)}
+     */
+    String getDiskKey() {
+        String diskKey = mDiskKey;
+        if (diskKey == null) {
+            diskKey = ImageCache.hashKeyForDisk(url);
+            mDiskKey = diskKey;
+        }
+        return diskKey;
+    }
+
+    private static int toSizeBucket(int size) {
+        return (size + SIZE_BUCKET_PX - 1) / SIZE_BUCKET_PX * SIZE_BUCKET_PX;
+    }
+}
@@ -0,0 +1,66 @@
+package com.uphyca.imageloadlib;
+
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+/**
+ * Pauses an {@link ImageFetcher} while a list scrolls, so that rows flying by
+ * do not start loads that are useless a few milliseconds later. Loads of the
+ * rows still on screen start when the list settles.
+ */
+public class PauseOnScrollListener implements OnScrollListener {
+
+    private final ImageFetcher mImageFetcher;
+    private final boolean mPauseOnTouchScroll;
+    private final OnScrollListener mDelegate;
+
+    /**
+     * Pauses during flings only.
+     * @param imageFetcher
+     */
+    public PauseOnScrollListener(ImageFetcher imageFetcher) {
+        this(imageFetcher, false, null);
+    }
+
+    /**
+     * @param imageFetcher
+     * @param pauseOnTouchScroll
+     *            also pause while the list is dragged
+     * @param delegate
+     *            a listener to forward the scroll events to, or null
+     */
+    public PauseOnScrollListener(ImageFetcher imageFetcher, boolean pauseOnTouchScroll, OnScrollListener delegate) {
+        mImageFetcher = imageFetcher;
+        mPauseOnTouchScroll = pauseOnTouchScroll;
+        mDelegate = delegate;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        switch (scrollState) {
+        case SCROLL_STATE_FLING:
+            mImageFetcher.pause();
+            break;
+        case SCROLL_STATE_TOUCH_SCROLL:
+            if (mPauseOnTouchScroll) {
+                mImageFetcher.pause();
+            } else {
+                mImageFetcher.resume();
+            }
+            break;
+        default:
+            mImageFetcher.resume();
+            break;
+        }
+        if (mDelegate != null) {
+            mDelegate.onScrollStateChanged(view, scrollState);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (mDelegate != null) {
+            mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.uphyca.imageloadlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Packs the bytes of small cache entries into a few large append-only slab
+ * files, so that a thumbnail does not pay for a file of its own. Slabs are
+ * mapped into memory, and reading an entry is a copy out of the mapping.
+ * <p>
+ * Every record holds its key, so the offsets are rebuilt by scanning the slabs
+ * when the store is opened; the record length is written last, which makes a
+ * record torn by a crash invisible. Records of removed or rewritten entries
+ * get a negative length, so they stay dropped when the store is opened again,
+ * and remain in their slab as dead space, which {@link DiskLruCache} counts against
+ * its byte limit, until {@link #compact()} copies the live records of the
+ * emptiest slabs to the end of the newest one and deletes them.
+ * <p>
+ * Not thread safe. {@link DiskLruCache} calls it while holding its index lock.
+ */
+final class SlabStore {
+    private static final String TAG = "SlabStore";
+
+    private static final String SLAB_DIR = "slabs";
+    private static final String SLAB_FILENAME_PREFIX = "slab_";
+
+    private static final int SLAB_SIZE = 1024 * 1024; // 1MB
+    /** Entries up to this size are stored in a slab. */
+    static final int MAX_ENTRY_SIZE = 32 * 1024; // 32KB
+    // 書き終えたスラブのうち、使われていない部分がこの割合 (%) を超えたら詰め直す
+    private static final int COMPACT_DEAD_PERCENT = 25;
+    // レコードの頭: データの長さ (int) とキーの長さ (short)
+    private static final int HEADER_SIZE = 6;
+
+    private final File mDir;
+    private final HashMap<String, Location> mIndex = new HashMap<String, Location>();
+    private final ArrayList<Slab> mSlabs = new ArrayList<Slab>();
+    private int mNextSlabId;
+
+    private static final class Slab {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writeOffset;
+        private int liveBytes;
+
+        private Slab(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Location {
+        private final Slab slab;
+        private final int offset;
+        private final int length;
+        private final int recordSize;
+
+        private Location(Slab slab, int offset, int length, int recordSize) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+
+    private SlabStore(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Opens the slabs in the cache directory and rebuilds the offsets of the
+     * entries they hold.
+     *
+     * @param cacheDir
+     * @return the store
+     * @throws IOException
+     */
+    static SlabStore open(File cacheDir) throws IOException {
+        final SlabStore store = new SlabStore(new File(cacheDir, SLAB_DIR));
+        store.mDir.mkdirs();
+        final String[] names = store.mDir.list();
+        if (names == null) {
+            throw new IOException("cannot list " + store.mDir);
+        }
+        final int[] ids = new int[names.length];
+        int count = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (!names[i].startsWith(SLAB_FILENAME_PREFIX)) {
+                continue;
+            }
+            try {
+                ids[count++] = Integer.parseInt(names[i].substring(SLAB_FILENAME_PREFIX.length()));
+            } catch (final NumberFormatException e) {
+                new File(store.mDir, names[i]).delete();
+                count--;
+            }
+        }
+        // 古いスラブから読めば、同じキーは後に書いたものが残る
+        Arrays.sort(ids, 0, count);
+        for (int i = 0; i < count; i++) {
+            store.readSlab(store.mapSlab(ids[i]));
+            store.mNextSlabId = ids[i] + 1;
+        }
+        return store;
+    }
+
+    /**
+     * Deletes every slab in the cache directory.
+     */
+    static void deleteAll(File cacheDir) {
+        final File dir = new File(cacheDir, SLAB_DIR);
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private Slab mapSlab(int id) throws IOException {
+        final File file = new File(mDir, SLAB_FILENAME_PREFIX + id);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != SLAB_SIZE) {
+                raf.setLength(SLAB_SIZE);
+            }
+            // マップはチャネルを閉じても有効
+            final Slab slab = new Slab(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SLAB_SIZE));
+            mSlabs.add(slab);
+            return slab;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void readSlab(Slab slab) {
+        final ByteBuffer buffer = slab.buffer;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= SLAB_SIZE) {
+            final int length = buffer.getInt(offset);
+            final int keyLength = buffer.getShort(offset + 4);
+            if (length == 0 || keyLength <= 0 || offset + HEADER_SIZE + keyLength + Math.abs(length) > SLAB_SIZE) {
+                // 書き込まれていない、もしくは書き込み途中で終わったレコード
+                break;
+            }
+            if (length < 0) {
+                // 消されたレコード
+                offset += HEADER_SIZE + keyLength - length;
+                continue;
+            }
+            final byte[] keyBytes = new byte[keyLength];
+            final ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(offset + HEADER_SIZE);
+            duplicate.get(keyBytes);
+            final int recordSize = HEADER_SIZE + keyLength + length;
+            index(toKey(keyBytes), new Location(slab, offset + HEADER_SIZE + keyLength, length, recordSize));
+            offset += recordSize;
+        }
+        slab.writeOffset = offset;
+    }
+
+    /**
+     * @return whether the store holds the entry
+     */
+    boolean contains(String key) {
+        return mIndex.containsKey(key);
+    }
+
+    /**
+     * @return a copy of the bytes of the entry, or null if the store does not
+     *         hold it
+     */
+    byte[] get(String key) {
+        final Location location = mIndex.get(key);
+        if (location == null) {
+            return null;
+        }
+        final byte[] bytes = new byte[location.length];
+        final ByteBuffer duplicate = location.slab.buffer.duplicate();
+        duplicate.position(location.offset);
+        duplicate.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the bytes into a slab, replacing the previous bytes of the entry.
+     *
+     * @param key
+     * @param data
+     * @param length
+     *            the number of bytes of data to store, more than 0 and at
+     *            most {@link #MAX_ENTRY_SIZE}
+     * @throws IOException
+     */
+    void put(String key, byte[] data, int length) throws IOException {
+        final Location location = allocate(toBytes(key), length);
+        final ByteBuffer target = location.slab.buffer.duplicate();
+        target.position(location.offset);
+        target.put(data, 0, length);
+        seal(key, location);
+    }
+
+    /**
+     * Drops the entry. Its record becomes dead space.
+     */
+    void remove(String key) {
+        final Location location = mIndex.remove(key);
+        if (location != null) {
+            kill(location);
+        }
+    }
+
+    /**
+     * Drops every entry whose key is not in the given set.
+     */
+    void retainAll(Set<String> keys) {
+        final Iterator<Entry<String, Location>> entries = mIndex.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Entry<String, Location> entry = entries.next();
+            if (!keys.contains(entry.getKey())) {
+                kill(entry.getValue());
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the keys of the entries the store holds
+     */
+    Set<String> keySet() {
+        return mIndex.keySet();
+    }
+
+    /**
+     * @return the bytes of the filled slabs that no entry uses, i.e. what
+     *         {@link #compact()} could free. The unwritten end of the newest
+     *         slab is not counted.
+     */
+    long deadBytes() {
+        long deadBytes = 0;
+        for (int i = 0; i < mSlabs.size() - 1; i++) {
+            deadBytes += SLAB_SIZE - mSlabs.get(i).liveBytes;
+        }
+        return deadBytes;
+    }
+
+    /**
+     * @return whether the filled slabs hold enough dead space to be compacted
+     */
+    boolean needsCompaction() {
+        return deadBytes() * 100 > (long) (mSlabs.size() - 1) * SLAB_SIZE * COMPACT_DEAD_PERCENT;
+    }
+
+    /**
+     * Moves the live records out of the emptiest filled slabs and deletes
+     * those slabs until the dead space is back under its share. The newest
+     * slab is still being filled and is left alone.
+     *
+     * @return the number of bytes freed on disk
+     */
+    long compact() {
+        long reclaimed = 0;
+        // 詰め直しで新しいスラブが増えても、最初にあったものだけを見る
+        final ArrayList<Slab> candidates = new ArrayList<Slab>(mSlabs.subList(0, Math.max(0, mSlabs.size() - 1)));
+        // 生きているレコードが少ないものほど安く空けられる
+        Collections.sort(candidates, new Comparator<Slab>() {
+            @Override
+            public int compare(Slab lhs, Slab rhs) {
+                return lhs.liveBytes < rhs.liveBytes ? -1 : (lhs.liveBytes == rhs.liveBytes ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < candidates.size() && needsCompaction(); i++) {
+            final Slab slab = candidates.get(i);
+            final int liveBytes = slab.liveBytes;
+            try {
+                moveLiveRecords(slab);
+            } catch (final IOException e) {
+                Log.e(TAG, "Error in compact: " + e.getMessage());
+                return reclaimed;
+            }
+            mSlabs.remove(slab);
+            slab.file.delete();
+            reclaimed += SLAB_SIZE - liveBytes;
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Drops every entry and deletes the slabs.
+     */
+    void clear() {
+        mIndex.clear();
+        mSlabs.clear();
+        deleteAll(mDir.getParentFile());
+        mDir.mkdirs();
+    }
+
+    private void moveLiveRecords(Slab slab) throws IOException {
+        final ArrayList<String> keys = new ArrayList<String>();
+        for (final Entry<String, Location> entry : mIndex.entrySet()) {
+            if (entry.getValue().slab == slab) {
+                keys.add(entry.getKey());
+            }
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            final String key = keys.get(i);
+            final Location from = mIndex.get(key);
+            final Location to = allocate(toBytes(key), from.length);
+            final ByteBuffer source = from.slab.buffer.duplicate();
+            source.position(from.offset);
+            source.limit(from.offset + from.length);
+            final ByteBuffer target = to.slab.buffer.duplicate();
+            target.position(to.offset);
+            target.put(source);
+            seal(key, to);
+        }
+    }
+
+    /**
+     * Reserves space for a record at the end of the newest slab, starting a
+     * new slab if it is full, and writes the key. The record is not visible
+     * until {@link #seal(String, Location)} writes its length.
+     */
+    private Location allocate(byte[] keyBytes, int length) throws IOException {
+        final int recordSize = HEADER_SIZE + keyBytes.length + length;
+        Slab slab = mSlabs.isEmpty() ? null : mSlabs.get(mSlabs.size() - 1);
+        if (slab == null || slab.writeOffset + recordSize > SLAB_SIZE) {
+            slab = mapSlab(mNextSlabId++);
+        }
+        final int offset = slab.writeOffset;
+        slab.buffer.putShort(offset + 4, (short) keyBytes.length);
+        final ByteBuffer duplicate = slab.buffer.duplicate();
+        duplicate.position(offset + HEADER_SIZE);
+        duplicate.put(keyBytes);
+        slab.writeOffset += recordSize;
+        return new Location(slab, offset + HEADER_SIZE + keyBytes.length, length, recordSize);
+    }
+
+    private void seal(String key, Location location) {
+        // 長さを最後に書くので、途中で落ちたレコードは読み込み時に無視される
+        writeLength(location, location.length);
+        index(key, location);
+    }
+
+    private static void writeLength(Location location, int length) {
+        location.slab.buffer.putInt(location.offset + location.length - location.recordSize, length);
+    }
+
+    private void index(String key, Location location) {
+        final Location previous = mIndex.put(key, location);
+        if (previous != null) {
+            kill(previous);
+        }
+        location.slab.liveBytes += location.recordSize;
+    }
+
+    /**
+     * Turns a record into dead space, also in the slab file, so that opening
+     * the store again does not bring the old bytes back.
+     */
+    private static void kill(Location location) {
+        // 負の長さのレコードは読み込み時に読み飛ばされる
+        writeLength(location, -location.length);
+        location.slab.liveBytes -= location.recordSize;
+    }
+
+    private static byte[] toBytes(String key) {
+        try {
+            return key.getBytes("US-ASCII");
+        } catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String toKey(byte[] keyBytes) {
+        try {
+            return new String(keyBytes, "US-ASCII");
+        } catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.uphyca.imageloadlib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map.Entry;
+
+/**
+ * Chooses the entries {@link DiskLruCache} evicts in
+ * {@link DiskLruCache#EVICTION_TINY_LFU} mode. New entries enter a small LRU
+ * window. Entries pushed out of the window join the main LRU region on
+ * probation; once the main region is over its share, such an entry stays only
+ * if it was used more often recently than the least recently used entry of
+ * the main region, which is evicted instead. Not thread safe.
+ */
+final class TinyLfuPolicy {
+
+    // ウィンドウの大きさ (キャッシュの 1/this)
+    private static final int WINDOW_DIVIDER = 10;
+
+    private final FrequencySketch mSketch;
+    private final int mMaxWindowItems;
+    private final long mMaxWindowBytes;
+
+    private final LinkedHashMap<String, Long> mWindow = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> mMain = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    // ウィンドウから押し出されて、まだ頻度を比べていないもの。古い順
+    private final LinkedHashSet<String> mProbation = new LinkedHashSet<String>();
+    private long mWindowBytes;
+    private long mMainBytes;
+
+    /**
+     * @param maxItems
+     *            the number of entries the cache holds at most
+     * @param maxBytes
+     *            the number of bytes the cache holds at most
+     */
+    TinyLfuPolicy(int maxItems, long maxBytes) {
+        mSketch = new FrequencySketch(maxItems);
+        mMaxWindowItems = Math.max(1, maxItems / WINDOW_DIVIDER);
+        mMaxWindowBytes = maxBytes / WINDOW_DIVIDER;
+    }
+
+    /**
+     * Records a lookup of the key, whether or not the cache has it.
+     */
+    void recordAccess(String key) {
+        mSketch.increment(key);
+        if (mWindow.get(key) == null && mMain.get(key) != null) {
+            // 使われたので比べるまでもなく残す
+            mProbation.remove(key);
+        }
+    }
+
+    /**
+     * Adds a new or rewritten entry to the window.
+     */
+    void onPut(String key, long size) {
+        mSketch.increment(key);
+        onRemove(key);
+        mWindow.put(key, size);
+        mWindowBytes += size;
+
+        // あふれた分は試用として本体に移す
+        while (mWindow.size() > 1 && (mWindow.size() > mMaxWindowItems || mWindowBytes > mMaxWindowBytes)) {
+            final Iterator<Entry<String, Long>> it = mWindow.entrySet().iterator();
+            final Entry<String, Long> eldest = it.next();
+            it.remove();
+            mWindowBytes -= eldest.getValue();
+            mMain.put(eldest.getKey(), eldest.getValue());
+            mMainBytes += eldest.getValue();
+            mProbation.add(eldest.getKey());
+        }
+    }
+
+    /**
+     * Adds an entry that was already in the cache, e.g. replayed from the
+     * journal, to the main region. Entries are added least recently used
+     * first.
+     */
+    void onLoad(String key, long size) {
+        onRemove(key);
+        mMain.put(key, size);
+        mMainBytes += size;
+    }
+
+    void onRemove(String key) {
+        Long size = mWindow.remove(key);
+        if (size != null) {
+            mWindowBytes -= size;
+        }
+        size = mMain.remove(key);
+        if (size != null) {
+            mMainBytes -= size;
+            mProbation.remove(key);
+        }
+    }
+
+    /**
+     * Chooses the entry to evict while the cache holds more than the given
+     * number of entries or bytes.
+     *
+     * @return the key of the entry, or null if there are no entries
+     */
+    String selectVictim(int maxItems, long maxBytes) {
+        final boolean mainOverShare = mMain.size() > maxItems - mMaxWindowItems
+                || mMainBytes > maxBytes - mMaxWindowBytes;
+        if ((!mainOverShare || mMain.isEmpty()) && !mWindow.isEmpty()) {
+            // 本体は収まっているのでウィンドウから追い出す
+            return mWindow.keySet().iterator().next();
+        }
+        if (mMain.isEmpty()) {
+            return null;
+        }
+
+        // 試用中でないもののうち一番古いもの
+        String victim = null;
+        for (final String key : mMain.keySet()) {
+            if (!mProbation.contains(key)) {
+                victim = key;
+                break;
+            }
+        }
+        final Iterator<String> probation = mProbation.iterator();
+        if (!probation.hasNext()) {
+            return victim;
+        }
+        final String candidate = probation.next();
+        probation.remove();
+        if (victim == null) {
+            return candidate;
+        }
+        // 最近よく使われている方を残す
+        return mSketch.frequency(candidate) > mSketch.frequency(victim) ? victim : candidate;
+    }
+
+    void clear() {
+        mWindow.clear();
+        mMain.clear();
+        mProbation.clear();
+        mWindowBytes = 0;
+        mMainBytes = 0;
+    }
+}